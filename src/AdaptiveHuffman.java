@@ -0,0 +1,189 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * One-pass adaptive Huffman coding (FGK). The code tree starts empty and is updated after every
+ * byte, identically on both sides, so no frequency pass and no header are needed and the output
+ * is written as the input is read. Works on pipes and other unbounded channels.
+ */
+public class AdaptiveHuffman implements CompressionAlgorithm {
+    private static final int SYMBOL_BITS = 9;
+    private static final int END = 256;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /**
+     * Compresses everything readable from the input until its end. Neither channel is closed.
+     */
+    @Override
+    public void compress(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        Tree tree = new Tree();
+        BitWriter bw = new BitWriter(output);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        while (input.read(buffer) != -1) {
+            buffer.flip();
+            while (buffer.hasRemaining()) tree.encode(buffer.get() & 0xFF, bw);
+            buffer.clear();
+        }
+        tree.encode(END, bw);
+        bw.flush();
+    }
+
+    /**
+     * Decompresses a stream produced by {@link #compress(ReadableByteChannel, WritableByteChannel)},
+     * stopping at its end marker. Neither channel is closed.
+     */
+    @Override
+    public void decompress(ReadableByteChannel input, WritableByteChannel output) throws IOException {
+        Tree tree = new Tree();
+        BitReader br = new BitReader(input);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int symbol;
+        while ((symbol = tree.decode(br)) != END) {
+            if (!buffer.hasRemaining()) drain(buffer, output);
+            buffer.put((byte) symbol);
+        }
+        drain(buffer, output);
+    }
+
+    public String getCompressedPath(String path) {
+        return path + ".ahc";
+    }
+
+    public String getDecompressedPath(String path) {
+        String originalFilePath = path.substring(0, path.length() - 4);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+    }
+
+    private static void drain(ByteBuffer buffer, WritableByteChannel output) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) output.write(buffer);
+        buffer.clear();
+    }
+
+    /**
+     * FGK code tree. Nodes are stored by their implicit number, so weights never decrease with the
+     * index and the root is the last node. Swapping two nodes swaps what they hold, not where they are.
+     * Symbols not seen yet are sent as the code of the NYT (not yet transmitted) leaf followed by the
+     * symbol in 9 bits; the end marker is such a symbol.
+     */
+    private static final class Tree {
+        private static final int MAX_NODES = 2 * (END + 2) - 1; // every symbol and the end marker, plus the NYT leaf
+        private static final int ROOT = MAX_NODES - 1;
+        private static final int NYT = -1;
+        private static final int INTERNAL = -2;
+
+        private final long[] weights = new long[MAX_NODES];
+        private final int[] parents = new int[MAX_NODES];
+        private final int[] lefts = new int[MAX_NODES]; // the right child is always left + 1
+        private final int[] symbols = new int[MAX_NODES];
+        private final int[] leaves = new int[END + 1]; // node of each symbol, 0 (where the NYT leaf ends up) if not seen yet
+        private final long[] overflow = new long[MAX_NODES / 64 + 1];
+        private int nyt = ROOT;
+
+        Tree() {
+            symbols[ROOT] = NYT;
+            parents[ROOT] = -1;
+        }
+
+        void encode(int symbol, BitWriter bw) throws IOException {
+            int leaf = leaves[symbol];
+            writePath(leaf == 0 ? nyt : leaf, bw);
+            if (leaf == 0) bw.write(symbol, SYMBOL_BITS);
+            update(symbol);
+        }
+
+        int decode(BitReader br) throws IOException {
+            int node = ROOT;
+            int bits = br.peek(32), used = 0;
+            while (symbols[node] == INTERNAL) {
+                if (used == 32) {
+                    br.skip(32);
+                    bits = br.peek(32);
+                    used = 0;
+                }
+                node = lefts[node] + ((bits >>> (31 - used++)) & 1);
+            }
+            br.skip(used);
+            int symbol = symbols[node] == NYT ? br.read(SYMBOL_BITS) : symbols[node];
+            if (symbol > END) throw new IOException("Invalid symbol in adaptive Huffman stream: " + symbol);
+            update(symbol);
+            return symbol;
+        }
+
+        // the code is the path from the root, found walking up from the leaf
+        // so the bits come out last first and are written once the root is reached
+        private void writePath(int node, BitWriter bw) throws IOException {
+            long code = 0;
+            int length = 0, chunks = 0;
+            for (; node != ROOT; node = parents[node]) {
+                if (length == 64) {
+                    overflow[chunks++] = code;
+                    code = 0;
+                    length = 0;
+                }
+                code |= (long) (node - lefts[parents[node]]) << length++;
+            }
+            bw.write(code, length);
+            while (chunks > 0) bw.write(overflow[--chunks], 64);
+        }
+
+        private void update(int symbol) {
+            int node = leaves[symbol];
+            if (node == 0) {
+                // the NYT leaf becomes an internal node with the new NYT on the left and the symbol on the right
+                int oldNyt = nyt;
+                nyt = oldNyt - 2;
+                node = oldNyt - 1;
+                symbols[oldNyt] = INTERNAL;
+                lefts[oldNyt] = nyt;
+                symbols[nyt] = NYT;
+                parents[nyt] = oldNyt;
+                symbols[node] = symbol;
+                parents[node] = oldNyt;
+                leaves[symbol] = node;
+            }
+            while (true) {
+                int leader = leaderOf(node);
+                if (leader != node) {
+                    swap(node, leader);
+                    node = leader;
+                }
+                weights[node]++;
+                if (node == ROOT) return;
+                node = parents[node];
+            }
+        }
+
+        // the highest numbered node of the same weight, other than the parent
+        private int leaderOf(int node) {
+            long weight = weights[node];
+            int leader = node;
+            while (leader < ROOT && weights[leader + 1] == weight) leader++;
+            if (leader == parents[node]) leader--;
+            return leader;
+        }
+
+        private void swap(int a, int b) {
+            int symbol = symbols[a], left = lefts[a];
+            symbols[a] = symbols[b];
+            lefts[a] = lefts[b];
+            symbols[b] = symbol;
+            lefts[b] = left;
+            attach(a);
+            attach(b);
+        }
+
+        private void attach(int node) {
+            if (symbols[node] == INTERNAL) {
+                parents[lefts[node]] = node;
+                parents[lefts[node] + 1] = node;
+            } else if (symbols[node] == NYT) {
+                nyt = node;
+            } else {
+                leaves[symbols[node]] = node;
+            }
+        }
+    }
+}
@@ -1,4 +1,11 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
 
 /**
  * Implementation of the arithmetic coding algorithm.
@@ -9,51 +16,184 @@ public class ArithmeticCoding implements CompressionAlgorithm {
     private static final long halfRange = (1L << 32) >>> 1;
     private static final long quarterRange = ((1L << 32) >>> 1) >>> 1;
     private static final long stateMask = (1L << 32) - 1;
+    private static final long TOP = 1L << 24;
+    private static final long BOTTOM = 1L << 16;
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final int SCALE_BITS = 15; // total of the static model, so each frequency fits in 16 bits
+
+    /** Order-0 counts of the whole file, scaled to 2^15 and stored in a 512 B header. */
+    public static final int STATIC_MODEL = 0;
+    /** Order-0 counts updated after every symbol, in one pass with nothing stored. */
+    public static final int ADAPTIVE_MODEL = 1;
+    /** Prediction by partial matching on the previous bytes, in one pass with nothing stored. */
+    public static final int PPM_MODEL = 2;
+
+    public static final int MAX_PPM_ORDER = 4;
+    private static final int DEFAULT_PPM_ORDER = 3;
+    private static final long PPM_MEMORY = 1L << 26; // bytes shared by the context tables
+
+    /** Binary arithmetic coder, renormalizing one bit at a time. */
+    public static final int BIT_CODER = 0;
+    /** Carry-less range coder (Subbotin), renormalizing one byte at a time. */
+    public static final int RANGE_CODER = 1;
+
+    private final int model;
+    private final int order;
+    private final int coder;
+    private final MetricsListener metrics;
+
+    public ArithmeticCoding() { this(STATIC_MODEL); }
+
+    /**
+     * Creates a coder compressing with the given model. The model is recorded in the first byte of
+     * the compressed file, so any ArithmeticCoding decompresses it whatever its own settings.
+     */
+    public ArithmeticCoding(int model) { this(model, DEFAULT_PPM_ORDER); }
+
+    /**
+     * Creates a coder using the given model, with contexts of up to order previous bytes for PPM_MODEL.
+     */
+    public ArithmeticCoding(int model, int order) { this(model, order, BIT_CODER); }
+
+    /**
+     * Creates a coder using the given model and coder. Like the model, the coder (and the order of
+     * PPM_MODEL) is recorded, so decompressing needs none of them.
+     */
+    public ArithmeticCoding(int model, int order, int coder) { this(model, order, coder, MetricsListener.NONE); }
+
+    /**
+     * Same as above, reporting the time of each phase and the figures of every call to metrics.
+     */
+    public ArithmeticCoding(int model, int order, int coder, MetricsListener metrics) {
+        if (model != STATIC_MODEL && model != ADAPTIVE_MODEL && model != PPM_MODEL)
+            throw new IllegalArgumentException("Unknown model: " + model);
+        if (order < 1 || order > MAX_PPM_ORDER)
+            throw new IllegalArgumentException("PPM order must be between 1 and " + MAX_PPM_ORDER);
+        if (coder != BIT_CODER && coder != RANGE_CODER)
+            throw new IllegalArgumentException("Unknown coder: " + coder);
+        this.model = model;
+        this.order = order;
+        this.coder = coder;
+        this.metrics = metrics;
+    }
 
     //
     // Public Methods
     //
 
+    /**
+     * Only the static model needs the whole input before coding, other inputs are coded as they are read.
+     */
     @Override
-    public void compress(String filePath) throws IOException {
-        FrequencyTable frequencies = getFrequencies(filePath);
-        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(filePath));
-             BitOutputStream bitOutputStream = new BitOutputStream(new BufferedOutputStream
-                 (new FileOutputStream(filePath + ".AE")))) {
-
-            ArithmeticEncoder arithmeticEncoder = new ArithmeticEncoder(bitOutputStream);
-            writeFrequencies(frequencies, bitOutputStream);
-            while (true) {
-                int symbol = inputStream.read();
-                if (symbol == -1) break;
-                arithmeticEncoder.updateState(frequencies, symbol);
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        long time = startTime();
+        CountingChannel counted = null;
+        if (metrics != MetricsListener.NONE) outputChannel = counted = new CountingChannel(outputChannel);
+        OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(outputChannel));
+        MappedInput input = null;
+        try {
+            outputStream.write(header());
+            Model frequencies = null;
+            PPMModel ppm = null;
+            if (model == STATIC_MODEL) {
+                input = MappedInput.of(inputChannel);
+                time = endPhase(true, MetricsListener.Phase.READ, time);
+                long[] counts = getFrequencies(input);
+                time = endPhase(true, MetricsListener.Phase.COUNT, time);
+                FrequencyTable table = new FrequencyTable(FrequencyTable.normalize(counts, SCALE_BITS));
+                input.rewind();
+                writeFrequencies(table, outputStream);
+                frequencies = table;
+            } else if (model == ADAPTIVE_MODEL) {
+                frequencies = new AdaptiveFrequencyTable(257);
+            } else {
+                ppm = new PPMModel(order, PPM_MEMORY);
             }
-            arithmeticEncoder.updateState(frequencies, 256);
-            bitOutputStream.writeBit(1);
+            Encoder encoder = coder == RANGE_CODER
+                ? new RangeEncoder(outputStream) : new ArithmeticEncoder(new BitOutputStream(outputStream));
+            time = endPhase(true, MetricsListener.Phase.BUILD, time);
+            byte[] chunk = new byte[CHUNK_SIZE];
+            long bytesIn = 0;
+            int read;
+            while ((read = input != null ? input.read(chunk) : ChannelIO.readFully(inputChannel, ByteBuffer.wrap(chunk))) > 0) {
+                bytesIn += read;
+                for (int i = 0; i < read; i++) {
+                    int symbol = chunk[i] & 0xFF;
+                    if (ppm != null) {
+                        ppm.encode(encoder, symbol);
+                    } else {
+                        encoder.updateState(frequencies, symbol);
+                        frequencies.update(symbol);
+                    }
+                }
+            }
+            if (ppm != null) ppm.encode(encoder, 256);
+            else encoder.updateState(frequencies, 256);
+            encoder.finish();
+            endPhase(true, MetricsListener.Phase.ENCODE, time);
+            if (counted != null) report(true, bytesIn, counted.getCount(), bytesIn, frequencies, ppm);
+        } finally {
+            if (input != null) input.close();
         }
     }
 
+    /**
+     * Decodes with the model, order and coder recorded in the first byte, not those of this coder.
+     * Reads the input until its end, which the bit coder needs to find its last bits.
+     */
     @Override
-    public void decompress(String filePath) throws IOException {
-        try (BitInputStream bitInputStream = new BitInputStream(new BufferedInputStream
-                (new FileInputStream(filePath)), new File(filePath).length());
-             OutputStream outputStream = new BufferedOutputStream
-                (new FileOutputStream("decompressed_" + filePath.substring(0, filePath.length()-3)))) {
-
-            FrequencyTable frequencies = readFrequencies(bitInputStream);
-            ArithmeticDecoder arithmeticDecoder = new ArithmeticDecoder(bitInputStream);
-            while (true) {
-                int symbol = arithmeticDecoder.nextSymbol(frequencies);
-                if (symbol == 256) break;
-                outputStream.write(symbol);
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        long time = startTime();
+        CountingChannel counted = null;
+        if (metrics != MetricsListener.NONE) inputChannel = counted = new CountingChannel(inputChannel);
+        InputStream inputStream = new BufferedInputStream(Channels.newInputStream(inputChannel));
+        OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(outputChannel));
+
+        int header = inputStream.read();
+        if (header == -1) throw new EOFException("Empty arithmetic coding stream");
+        int model = header >>> 6, coder = header >>> 5 & 1, order = header & 7;
+        if (model > PPM_MODEL || (header & 0x10) != 0 || (model == PPM_MODEL ? order < 1 || order > MAX_PPM_ORDER : order != 0))
+            throw new IOException("Unknown arithmetic coding header: " + header);
+        Model frequencies = null;
+        PPMModel ppm = null;
+        if (model == STATIC_MODEL) {
+            frequencies = readFrequencies(inputStream);
+        } else if (model == ADAPTIVE_MODEL) {
+            frequencies = new AdaptiveFrequencyTable(257);
+        } else {
+            ppm = new PPMModel(order, PPM_MEMORY);
+        }
+        Decoder decoder = coder == RANGE_CODER
+            ? new RangeDecoder(inputStream) : new ArithmeticDecoder(new BitInputStream(inputStream));
+        time = endPhase(false, MetricsListener.Phase.BUILD, time);
+        byte[] chunk = new byte[CHUNK_SIZE];
+        long bytesOut = 0;
+        int length = 0;
+        while (true) {
+            int symbol = ppm != null ? ppm.decode(decoder) : decoder.nextSymbol(frequencies);
+            if (symbol == 256) break;
+            if (ppm == null) frequencies.update(symbol);
+            if (length == chunk.length) {
+                outputStream.write(chunk, 0, length);
+                bytesOut += length;
+                length = 0;
             }
+            chunk[length++] = (byte) symbol;
         }
+        outputStream.write(chunk, 0, length);
+        outputStream.flush();
+        bytesOut += length;
+        endPhase(false, MetricsListener.Phase.DECODE, time);
+        if (counted != null) report(false, counted.getCount(), bytesOut, bytesOut, frequencies, ppm);
     }
+
     public String getCompressedPath(String filePath) {
         return filePath + ".AE";
     }
     public String getDecompressedPath(String filePath) {
-        return "decompressed_" + filePath.substring(0, filePath.length()-3);
+        // the prefix goes on the file name, not on the directory
+        Path originalPath = Paths.get(filePath.substring(0, filePath.length()-3));
+        return originalPath.resolveSibling("decompressed_" + originalPath.getFileName()).toString();
     }
 
     //
@@ -61,19 +201,53 @@ public class ArithmeticCoding implements CompressionAlgorithm {
     //
 
     /**
-     * Creates and returns a new frequency table after processing a given file path.
+     * First byte of the stream: the model in the top two bits, then the coder, a zero bit and the
+     * order in the low three bits (0 unless the model is PPM_MODEL, the only one using it).
      */
-    private static FrequencyTable getFrequencies(String filePath) throws IOException {
-        FrequencyTable frequencies = new FrequencyTable(new int[257]);
-        try (InputStream inputStream = new BufferedInputStream(new FileInputStream(filePath))) {
-            while (true) {
-                int b = inputStream.read();
-                if (b == -1) break;
-                frequencies.increment(b);
-            }
+    private int header() { return model << 6 | coder << 5 | (model == PPM_MODEL ? order : 0); }
+
+    // the start of the first phase, not taken without a listener
+    private long startTime() {
+        return metrics == MetricsListener.NONE ? 0 : System.nanoTime();
+    }
+
+    // reports the phase that started at the given time and returns the start of the next one
+    private long endPhase(boolean compress, MetricsListener.Phase phase, long start) {
+        if (metrics == MetricsListener.NONE) return 0;
+        long now = System.nanoTime();
+        metrics.phase("ArithmeticCoding", compress, phase, now - start);
+        return now;
+    }
+
+    /**
+     * Reports the figures of a call. The symbols include the end marker; the dictionary is the number
+     * of symbols the order-0 models can code, or the number of contexts PPM holds.
+     */
+    private void report(boolean compress, long bytesIn, long bytesOut, long bytes, Model frequencies, PPMModel ppm) {
+        long dictionarySize = 0, tableSize;
+        if (ppm != null) {
+            dictionarySize = ppm.contexts();
+            tableSize = ppm.slots();
+        } else {
+            for (int symbol = 0; symbol < 257; symbol++)
+                if (frequencies.getHigh(symbol) > frequencies.getLow(symbol)) dictionarySize++;
+            tableSize = frequencies.getTotalBits() > 0 ? 1L << frequencies.getTotalBits() : 257;
         }
-        frequencies.increment(256);
-        frequencies.initializeCumulative();
+        metrics.call(new MetricsListener.Call("ArithmeticCoding", compress, bytesIn, bytesOut, bytes + 1, dictionarySize, tableSize));
+    }
+
+    /**
+     * Counts the bytes of the given input, plus one end of file symbol. The counts are 64-bit,
+     * they are only scaled down to the model's total with FrequencyTable.normalize.
+     */
+    static long[] getFrequencies(MappedInput input) {
+        long[] frequencies = new long[257];
+        byte[] chunk = new byte[CHUNK_SIZE];
+        int read;
+        while ((read = input.read(chunk)) != -1) {
+            for (int i = 0; i < read; i++) frequencies[chunk[i] & 0xFF]++;
+        }
+        frequencies[256]++;
         return frequencies;
     }
 
@@ -81,32 +255,30 @@ public class ArithmeticCoding implements CompressionAlgorithm {
      * Reads a frequency table from a given input stream and returns it.
      */
     private static FrequencyTable readFrequencies
-        (BitInputStream bitInputStream) throws IOException {
+        (InputStream inputStream) throws IOException {
 
+        DataInputStream dataInputStream = new DataInputStream(inputStream);
         int[] frequencies = new int[257];
-        frequencies[256] = 1;
+        int sum = 0;
         for (int i = 0; i < 256; i++) {
-            int frequency = 0;
-            for (int j = 0 ; j < 32 ; j++) {
-                frequency <<= 1;
-                frequency |= bitInputStream.readBit();
-            }
-            frequencies[i] = frequency;
+            frequencies[i] = dataInputStream.readUnsignedShort();
+            sum += frequencies[i];
         }
+        // the end of file symbol takes the rest of the total
+        if (sum >= 1 << SCALE_BITS) throw new IOException("Corrupted frequency table");
+        frequencies[256] = (1 << SCALE_BITS) - sum;
         return new FrequencyTable(frequencies);
     }
 
     /**
-     * Writes the frequency table.
+     * Writes the frequency table, normalized to a total of 2^SCALE_BITS.
      */
     private static void writeFrequencies
-        (FrequencyTable frequencies, BitOutputStream out) throws IOException {
+        (FrequencyTable frequencies, OutputStream out) throws IOException {
         for (int i = 0; i < 256; i++) {
             int num = frequencies.getFrequency(i);
-            out.writeByte((num >> 24) & 0xFF);
-            out.writeByte((num >> 16) & 0xFF);
-            out.writeByte((num >> 8) & 0xFF);
-            out.writeByte(num & 0xFF);
+            out.write((num >> 8) & 0xFF);
+            out.write(num & 0xFF);
         }
     }
 
@@ -114,10 +286,80 @@ public class ArithmeticCoding implements CompressionAlgorithm {
     // Classes
     //
 
+    /**
+     * Entropy encoder narrowing its state to the range of each coded symbol.
+     */
+    private interface Encoder {
+        /**
+         * Updates the encoder state with the range [symbolLow, symbolHigh) out of total.
+         */
+        void updateState(long symbolLow, long symbolHigh, long total) throws IOException;
+
+        /**
+         * Same as updateState with a total of 2^totalBits, using shifts instead of divisions.
+         */
+        void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException;
+
+        /**
+         * Updates the encoder state with the range of the symbol in the model.
+         */
+        default void updateState(Model frequencies, int symbol) throws IOException {
+            int totalBits = frequencies.getTotalBits();
+            if (totalBits > 0) updateStateScaled(frequencies.getLow(symbol), frequencies.getHigh(symbol), totalBits);
+            else updateState(frequencies.getLow(symbol), frequencies.getHigh(symbol), frequencies.getTotal());
+        }
+
+        /**
+         * Writes the rest of the code and flushes it, without closing the output.
+         */
+        void finish() throws IOException;
+    }
+
+    /**
+     * Entropy decoder mirroring an {@link Encoder}. Each symbol is decoded by calling getValue
+     * and then updateState with the range containing the value and the same total.
+     */
+    private interface Decoder {
+        /**
+         * Returns where the code falls in the current range scaled to [0, total).
+         */
+        long getValue(long total);
+
+        /**
+         * Updates the decoder state with the range [symbolLow, symbolHigh) out of total.
+         */
+        void updateState(long symbolLow, long symbolHigh, long total) throws IOException;
+
+        /**
+         * Same as getValue with a total of 2^totalBits.
+         */
+        long getValueScaled(int totalBits);
+
+        /**
+         * Same as updateState with a total of 2^totalBits, using shifts instead of divisions.
+         */
+        void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException;
+
+        /**
+         * Gets the next symbol of the compressed text.
+         */
+        default int nextSymbol(Model frequencies) throws IOException {
+            int totalBits = frequencies.getTotalBits();
+            if (totalBits > 0) {
+                int symbol = frequencies.getSymbol((int) getValueScaled(totalBits));
+                updateStateScaled(frequencies.getLow(symbol), frequencies.getHigh(symbol), totalBits);
+                return symbol;
+            }
+            int symbol = frequencies.getSymbol((int) getValue(frequencies.getTotal()));
+            updateState(frequencies.getLow(symbol), frequencies.getHigh(symbol), frequencies.getTotal());
+            return symbol;
+        }
+    }
+
     /**
      * Implementation of the arithmetic encoder.
      */
-    private static final class ArithmeticEncoder {
+    private static final class ArithmeticEncoder implements Encoder {
 
         private long low = 0;
         private long high = stateMask;
@@ -127,12 +369,23 @@ public class ArithmeticCoding implements CompressionAlgorithm {
         public ArithmeticEncoder(BitOutputStream bitOutputStream) { this.bitOutputStream = bitOutputStream; }
 
         /**
-         * Updates the encoder state.
+         * Updates the encoder state with the range [symbolLow, symbolHigh) out of total.
          */
-        public void updateState(FrequencyTable frequencies, int symbol) throws IOException {
-            long temp = low + frequencies.getHigh(symbol) * (high - low + 1) / frequencies.getTotal() - 1;
-            low += frequencies.getLow(symbol)  * (high - low + 1) / frequencies.getTotal();
+        public void updateState(long symbolLow, long symbolHigh, long total) throws IOException {
+            long temp = low + symbolHigh * (high - low + 1) / total - 1;
+            low += symbolLow * (high - low + 1) / total;
+            high = temp;
+            normalize();
+        }
+
+        public void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException {
+            long temp = low + (symbolHigh * (high - low + 1) >>> totalBits) - 1;
+            low += symbolLow * (high - low + 1) >>> totalBits;
             high = temp;
+            normalize();
+        }
+
+        private void normalize() throws IOException {
             while (((low ^ high) & halfRange) == 0) {
                 int bit = (int) (low >>> (31));
                 bitOutputStream.writeBit(bit);
@@ -146,12 +399,17 @@ public class ArithmeticCoding implements CompressionAlgorithm {
                 high = ((high ^ halfRange) << 1) | halfRange | 1;
             }
         }
+
+        public void finish() throws IOException {
+            bitOutputStream.writeBit(1);
+            bitOutputStream.flush();
+        }
     }
 
     /**
      * Implementation of the arithmetic decoder.
      */
-    private static final class ArithmeticDecoder {
+    private static final class ArithmeticDecoder implements Decoder {
 
         private long code = 0;
         private long low = 0;
@@ -164,12 +422,23 @@ public class ArithmeticCoding implements CompressionAlgorithm {
         }
 
         /**
-         * Updates the decoder state.
+         * Updates the decoder state with the range [symbolLow, symbolHigh) out of total.
          */
-        public void updateState(FrequencyTable frequencies, int symbol) throws IOException {
-            long temp = (low + frequencies.getHigh(symbol) * (high - low + 1) / frequencies.getTotal() - 1);
-            low += frequencies.getLow(symbol)  * (high - low + 1) / frequencies.getTotal();
+        public void updateState(long symbolLow, long symbolHigh, long total) throws IOException {
+            long temp = (low + symbolHigh * (high - low + 1) / total - 1);
+            low += symbolLow * (high - low + 1) / total;
             high = temp;
+            normalize();
+        }
+
+        public void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException {
+            long temp = low + (symbolHigh * (high - low + 1) >>> totalBits) - 1;
+            low += symbolLow * (high - low + 1) >>> totalBits;
+            high = temp;
+            normalize();
+        }
+
+        private void normalize() throws IOException {
             while (((low ^ high) & halfRange) == 0) {
                 int bit = Math.max(0, bitInputStream.readBit());
                 code = ((code << 1) & stateMask) | bit;
@@ -184,30 +453,176 @@ public class ArithmeticCoding implements CompressionAlgorithm {
             }
         }
 
-        /**
-         * Gets the next symbol of the compressed text.
-         */
-        public int nextSymbol(FrequencyTable frequencies) throws IOException {
-            long value = (((code - low) + 1) * frequencies.getTotal() - 1) / (high - low + 1);
-            int start = 0, end = 257;
-            while (end - start > 1) {
-                int middle = (start + end) >>> 1;
-                if (frequencies.getLow(middle) > value) end = middle;
-                else start = middle;
+        public long getValue(long total) {
+            return (((code - low) + 1) * total - 1) / (high - low + 1);
+        }
+
+        public long getValueScaled(int totalBits) {
+            return ((((code - low) + 1) << totalBits) - 1) / (high - low + 1);
+        }
+    }
+
+    /**
+     * Carry-less range coder (Subbotin). The state is a 32-bit low and range; once the top byte of
+     * the low can no longer change, or the range gets below 2^16, a whole byte is written.
+     * Totals must not exceed 2^16.
+     */
+    private static final class RangeEncoder implements Encoder {
+        private final OutputStream outputStream;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int position;
+        private long low = 0;
+        private long range = stateMask;
+
+        public RangeEncoder(OutputStream outputStream) { this.outputStream = outputStream; }
+
+        public void updateState(long symbolLow, long symbolHigh, long total) throws IOException {
+            range /= total;
+            low += symbolLow * range;
+            range *= symbolHigh - symbolLow;
+            normalize();
+        }
+
+        public void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException {
+            range >>>= totalBits;
+            low += symbolLow * range;
+            range *= symbolHigh - symbolLow;
+            normalize();
+        }
+
+        private void normalize() throws IOException {
+            while (true) {
+                if ((low ^ (low + range)) >= TOP) {
+                    if (range >= BOTTOM) return;
+                    // the top byte is still undecided but the range is too small, give up the part past the next byte boundary
+                    range = -low & (BOTTOM - 1);
+                }
+                writeByte((int) (low >>> 24));
+                low = (low << 8) & stateMask;
+                range <<= 8;
             }
-            updateState(frequencies, start);
-            return start;
+        }
+
+        public void finish() throws IOException {
+            for (int i = 0; i < 4; i++) {
+                writeByte((int) (low >>> 24));
+                low = (low << 8) & stateMask;
+            }
+            outputStream.write(buffer, 0, position);
+            position = 0;
+            outputStream.flush();
+        }
+
+        private void writeByte(int b) throws IOException {
+            if (position == buffer.length) {
+                outputStream.write(buffer, 0, position);
+                position = 0;
+            }
+            buffer[position++] = (byte) b;
+        }
+    }
+
+    /**
+     * Decoder of the {@link RangeEncoder} output.
+     */
+    private static final class RangeDecoder implements Decoder {
+        private final InputStream inputStream;
+        private final byte[] buffer = new byte[CHUNK_SIZE];
+        private int position;
+        private int limit;
+        private long low = 0;
+        private long range = stateMask;
+        private long code = 0;
+
+        public RangeDecoder(InputStream inputStream) throws IOException {
+            this.inputStream = inputStream;
+            for (int i = 0; i < 4; i++) code = (code << 8) | readByte();
+        }
+
+        public long getValue(long total) {
+            range /= total;
+            return Math.min(((code - low) & stateMask) / range, total - 1);
+        }
+
+        public long getValueScaled(int totalBits) {
+            range >>>= totalBits;
+            return Math.min(((code - low) & stateMask) / range, (1L << totalBits) - 1);
+        }
+
+        public void updateState(long symbolLow, long symbolHigh, long total) throws IOException {
+            // the range was already divided by the total in getValue
+            low += symbolLow * range;
+            range *= symbolHigh - symbolLow;
+            normalize();
+        }
+
+        public void updateStateScaled(long symbolLow, long symbolHigh, int totalBits) throws IOException {
+            low += symbolLow * range;
+            range *= symbolHigh - symbolLow;
+            normalize();
+        }
+
+        private void normalize() throws IOException {
+            while (true) {
+                if ((low ^ (low + range)) >= TOP) {
+                    if (range >= BOTTOM) return;
+                    range = -low & (BOTTOM - 1);
+                }
+                code = ((code << 8) | readByte()) & stateMask;
+                low = (low << 8) & stateMask;
+                range <<= 8;
+            }
+        }
+
+        // past the end of the input the code reads zeros
+        private int readByte() throws IOException {
+            if (position == limit) {
+                limit = inputStream.read(buffer);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return 0;
+                }
+            }
+            return buffer[position++] & 0xFF;
         }
     }
 
+    /**
+     * Probabilities of the symbols as integer ranges [low, high) out of a total.
+     */
+    private interface Model {
+        int getTotal();
+
+        int getLow(int symbol);
+
+        int getHigh(int symbol);
+
+        /**
+         * Returns the symbol whose range contains the value.
+         */
+        int getSymbol(int value);
+
+        /**
+         * Returns n when the total is always 2^n, or 0 if it isn't a fixed power of two.
+         */
+        default int getTotalBits() { return 0; }
+
+        /**
+         * Called after each coded symbol, the same way on both sides.
+         */
+        void update(int symbol);
+    }
+
     /**
      * Represents the probabilities' table which holds the cumulative probability
      * and the occurrences of each character.
      */
-    private static final class FrequencyTable {
+    static final class FrequencyTable implements Model {
 
         public final int[] frequencies;
         private int[] cumulative = null;
+        private char[] slotSymbols = null; // symbol of each value, when the total is a power of two
         private int total = 0;
 
         public FrequencyTable(int[] frequencies) {
@@ -218,17 +633,58 @@ public class ArithmeticCoding implements CompressionAlgorithm {
 
         public int getFrequency(int symbol) { return frequencies[symbol]; }
 
-        public void increment(int symbol) {
-            total++;
-            frequencies[symbol]++;
-        }
-
         public int getTotal() { return total; }
 
         public int getLow(int symbol) { return cumulative[symbol]; }
 
         public int getHigh(int symbol) { return cumulative[symbol+1]; }
 
+        public int getSymbol(int value) {
+            if (slotSymbols != null) return slotSymbols[value];
+            int start = 0, end = frequencies.length;
+            while (end - start > 1) {
+                int middle = (start + end) >>> 1;
+                if (cumulative[middle] > value) end = middle;
+                else start = middle;
+            }
+            return start;
+        }
+
+        public void update(int symbol) { }
+
+        public int getTotalBits() { return slotSymbols != null ? Integer.numberOfTrailingZeros(total) : 0; }
+
+        /**
+         * Scales the counts to a total of 2^totalBits, keeping at least 1 for every symbol that occurs.
+         */
+        static int[] normalize(long[] counts, int totalBits) {
+            int target = 1 << totalBits;
+            long total = 0;
+            for (long count : counts) total += count;
+            int[] scaled = new int[counts.length];
+            if (total == 0) return scaled;
+            int sum = 0;
+            for (int i = 0; i < counts.length; i++) {
+                if (counts[i] == 0) continue;
+                scaled[i] = (int) Math.max(1, counts[i] * target / total); // fits for counts below 2^47
+                sum += scaled[i];
+            }
+            // settle the rounding error on the most frequent symbols, where it costs the least
+            while (sum != target) {
+                int largest = 0;
+                for (int i = 1; i < counts.length; i++) if (scaled[i] > scaled[largest]) largest = i;
+                if (sum < target) {
+                    scaled[largest] += target - sum;
+                    sum = target;
+                } else {
+                    int taken = Math.min(sum - target, scaled[largest] / 2);
+                    scaled[largest] -= taken;
+                    sum -= taken;
+                }
+            }
+            return scaled;
+        }
+
         public void initializeCumulative() {
             int sum = 0;
             cumulative = new int[frequencies.length + 1];
@@ -236,6 +692,298 @@ public class ArithmeticCoding implements CompressionAlgorithm {
                 sum += frequencies[i];
                 cumulative[i + 1] = sum;
             }
+            // with a power of two total the decoder finds symbols with a lookup instead of a search
+            slotSymbols = null;
+            if (sum > 0 && sum <= 1 << 16 && Integer.bitCount(sum) == 1) {
+                slotSymbols = new char[sum];
+                for (int symbol = 0; symbol < frequencies.length; symbol++)
+                    Arrays.fill(slotSymbols, cumulative[symbol], cumulative[symbol + 1], (char) symbol);
+            }
+        }
+    }
+
+    /**
+     * Frequency table that learns the counts while coding. The cumulative counts are kept in
+     * a Fenwick tree, so looking up and updating a symbol takes O(log n). Counts are halved
+     * when the total gets too large, which also lets the model follow changes in the input.
+     */
+    private static final class AdaptiveFrequencyTable implements Model {
+        private static final int INCREMENT = 32;
+        private static final int MAX_TOTAL = 1 << 16;
+
+        private final int[] frequencies;
+        private final int[] tree; // tree[i] holds the sum of the frequencies of (i - (i & -i), i]
+        private final int topBit;
+        private int total;
+
+        public AdaptiveFrequencyTable(int symbols) {
+            frequencies = new int[symbols];
+            tree = new int[symbols + 1];
+            topBit = Integer.highestOneBit(symbols);
+            Arrays.fill(frequencies, 1);
+            rebuild();
+        }
+
+        public int getTotal() { return total; }
+
+        public int getLow(int symbol) {
+            int sum = 0;
+            for (int i = symbol; i > 0; i -= i & -i) sum += tree[i];
+            return sum;
+        }
+
+        public int getHigh(int symbol) { return getLow(symbol) + frequencies[symbol]; }
+
+        public int getSymbol(int value) {
+            // walk down the tree, keeping the largest prefix whose sum is not above the value
+            int symbol = 0;
+            for (int step = topBit; step > 0; step >>= 1) {
+                int next = symbol + step;
+                if (next < tree.length && tree[next] <= value) {
+                    symbol = next;
+                    value -= tree[next];
+                }
+            }
+            return symbol;
+        }
+
+        public void update(int symbol) {
+            frequencies[symbol] += INCREMENT;
+            total += INCREMENT;
+            for (int i = symbol + 1; i < tree.length; i += i & -i) tree[i] += INCREMENT;
+            if (total > MAX_TOTAL) {
+                for (int i = 0; i < frequencies.length; i++) frequencies[i] = (frequencies[i] + 1) >>> 1;
+                rebuild();
+            }
+        }
+
+        private void rebuild() {
+            total = 0;
+            for (int i = 0; i < frequencies.length; i++) {
+                tree[i + 1] = frequencies[i];
+                total += frequencies[i];
+            }
+            for (int i = 1; i < tree.length; i++) {
+                int parent = i + (i & -i);
+                if (parent < tree.length) tree[parent] += tree[i];
+            }
+        }
+    }
+
+    /**
+     * PPM (prediction by partial matching) model, method C with exclusions. A symbol is coded in the
+     * longest context of previous bytes it was already seen in; each longer context that doesn't
+     * know it codes an escape, with a count equal to its number of distinct symbols, and its symbols
+     * are excluded from the shorter contexts. Symbols never seen at all, and the end marker, are
+     * coded with equal probabilities after escaping from order 0.
+     */
+    private static final class PPMModel {
+        private final int order;
+        private final ContextTable[] tables; // one per order, 0 to order
+        private final int[] excluded = new int[257]; // symbols are excluded when equal to the stamp
+        private int stamp;
+        private int history; // the previous bytes, the last one in the low byte
+
+        public PPMModel(int order, long memory) {
+            this.order = order;
+            tables = new ContextTable[order + 1];
+            // orders 0 to order share the memory, so together they stay within it
+            for (int i = 0; i <= order; i++) tables[i] = new ContextTable(i, memory / (order + 1));
+        }
+
+        public void encode(Encoder encoder, int symbol) throws IOException {
+            stamp++;
+            boolean coded = false;
+            for (int i = order; i >= 0 && !coded; i--) {
+                ContextTable table = tables[i];
+                int slot = table.find(history);
+                if (slot < 0) continue;
+                int total = 0, distinct = 0, symbolLow = 0, count = 0;
+                int base = slot << 8;
+                for (int j = 0; j < table.distinct[slot]; j++) {
+                    int s = table.symbols[base + j] & 0xFF;
+                    if (excluded[s] == stamp) continue;
+                    if (s == symbol) {
+                        symbolLow = total;
+                        count = table.counts[base + s];
+                    }
+                    total += table.counts[base + s];
+                    distinct++;
+                }
+                if (total == 0) continue;
+                if (count > 0) {
+                    encoder.updateState(symbolLow, symbolLow + count, total + distinct);
+                    coded = true;
+                } else {
+                    encoder.updateState(total, total + distinct, total + distinct);
+                    exclude(table, slot);
+                }
+            }
+            if (!coded) {
+                int symbolLow = 0, total = 0;
+                for (int s = 0; s < 257; s++) {
+                    if (excluded[s] == stamp) continue;
+                    if (s < symbol) symbolLow++;
+                    total++;
+                }
+                encoder.updateState(symbolLow, symbolLow + 1, total);
+            }
+            if (symbol != 256) update(symbol);
+        }
+
+        public int decode(Decoder decoder) throws IOException {
+            stamp++;
+            for (int i = order; i >= 0; i--) {
+                ContextTable table = tables[i];
+                int slot = table.find(history);
+                if (slot < 0) continue;
+                int total = 0, distinct = 0;
+                int base = slot << 8;
+                for (int j = 0; j < table.distinct[slot]; j++) {
+                    int s = table.symbols[base + j] & 0xFF;
+                    if (excluded[s] == stamp) continue;
+                    total += table.counts[base + s];
+                    distinct++;
+                }
+                if (total == 0) continue;
+                long value = decoder.getValue(total + distinct);
+                if (value >= total) {
+                    decoder.updateState(total, total + distinct, total + distinct);
+                    exclude(table, slot);
+                    continue;
+                }
+                int symbolLow = 0;
+                for (int j = 0; ; j++) {
+                    int s = table.symbols[base + j] & 0xFF;
+                    if (excluded[s] == stamp) continue;
+                    int count = table.counts[base + s];
+                    if (value < symbolLow + count) {
+                        decoder.updateState(symbolLow, symbolLow + count, total + distinct);
+                        update(s);
+                        return s;
+                    }
+                    symbolLow += count;
+                }
+            }
+            int total = 0;
+            for (int s = 0; s < 257; s++) if (excluded[s] != stamp) total++;
+            long value = decoder.getValue(total);
+            int symbol = 0;
+            for (int rank = 0; ; symbol++) {
+                if (excluded[symbol] == stamp) continue;
+                if (rank++ == value) break;
+            }
+            decoder.updateState(value, value + 1, total);
+            if (symbol != 256) update(symbol);
+            return symbol;
+        }
+
+        private void exclude(ContextTable table, int slot) {
+            int base = slot << 8;
+            for (int j = 0; j < table.distinct[slot]; j++) excluded[table.symbols[base + j] & 0xFF] = stamp;
+        }
+
+        private void update(int symbol) {
+            for (int i = 0; i <= order; i++) tables[i].increment(history, symbol);
+            history = (history << 8) | symbol;
+        }
+
+        public long contexts() {
+            long contexts = 0;
+            for (ContextTable table : tables) contexts += table.contexts();
+            return contexts;
+        }
+
+        public long slots() {
+            long slots = 0;
+            for (ContextTable table : tables) slots += table.keys.length;
+            return slots;
+        }
+    }
+
+    /**
+     * Symbol counts of the contexts of one order. Contexts are hashed into a fixed number of slots,
+     * a context taking the slot of another one starts over with no counts. Each slot lists its
+     * symbols in the order they were first seen, so only those are scanned.
+     */
+    private static final class ContextTable {
+        private static final int SLOT_BYTES = 256 * 3 + 13;
+        private static final int MAX_TOTAL = (1 << 16) - 256; // counts are halved above this, leaving room for the escape
+
+        private final int mask; // bytes of the context
+        private final int shift;
+        private final int[] keys;
+        private final boolean[] used;
+        private final int[] totals;
+        private final int[] distinct;
+        private final char[] counts; // 256 per slot, by symbol
+        private final byte[] symbols; // 256 per slot, in order of appearance
+
+        public ContextTable(int order, long memory) {
+            int bits = (int) Math.min(8L * order, 63 - Long.numberOfLeadingZeros(Math.max(1, memory / SLOT_BYTES)));
+            int slots = 1 << bits;
+            mask = order == 4 ? -1 : (1 << (8 * order)) - 1;
+            shift = 32 - bits;
+            keys = new int[slots];
+            used = new boolean[slots];
+            totals = new int[slots];
+            distinct = new int[slots];
+            counts = new char[slots << 8];
+            symbols = new byte[slots << 8];
+        }
+
+        /**
+         * Returns the slot of the context of the given history, or -1 if it has no counts.
+         */
+        public int find(int history) {
+            int context = history & mask;
+            int slot = slot(context);
+            return used[slot] && keys[slot] == context ? slot : -1;
+        }
+
+        public void increment(int history, int symbol) {
+            int context = history & mask;
+            int slot = slot(context);
+            int base = slot << 8;
+            if (!used[slot] || keys[slot] != context) {
+                for (int j = 0; j < distinct[slot]; j++) counts[base + (symbols[base + j] & 0xFF)] = 0;
+                used[slot] = true;
+                keys[slot] = context;
+                totals[slot] = 0;
+                distinct[slot] = 0;
+            }
+            if (counts[base + symbol] == 0) symbols[base + distinct[slot]++] = (byte) symbol;
+            counts[base + symbol]++;
+            if (++totals[slot] > MAX_TOTAL) rescale(slot);
+        }
+
+        // halve the counts, forgetting the symbols left at zero
+        private void rescale(int slot) {
+            int base = slot << 8;
+            int kept = 0, total = 0;
+            for (int j = 0; j < distinct[slot]; j++) {
+                int symbol = symbols[base + j] & 0xFF;
+                int count = counts[base + symbol] >>> 1;
+                counts[base + symbol] = (char) count;
+                if (count == 0) continue;
+                symbols[base + kept++] = (byte) symbol;
+                total += count;
+            }
+            distinct[slot] = kept;
+            totals[slot] = total;
+        }
+
+        /**
+         * Returns the number of slots holding a context.
+         */
+        public int contexts() {
+            int contexts = 0;
+            for (boolean slot : used) if (slot) contexts++;
+            return contexts;
+        }
+
+        private int slot(int context) {
+            return shift == 32 ? 0 : (context * 0x9E3779B1) >>> shift;
         }
     }
 
@@ -266,10 +1014,18 @@ public class ArithmeticCoding implements CompressionAlgorithm {
 
         public void writeByte(int b) throws IOException { this.outputStream.write(b); }
 
-        @Override
-        public void close() throws IOException {
+        /**
+         * Writes the number of bits used in the last byte and the last byte, then flushes.
+         */
+        public void flush() throws IOException {
             outputStream.write((8 - bitsLeft));
             outputStream.write(byteToWrite);
+            outputStream.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
             outputStream.close();
         }
     }
@@ -279,30 +1035,35 @@ public class ArithmeticCoding implements CompressionAlgorithm {
      */
     private static final class BitInputStream implements AutoCloseable {
         private final InputStream inputStream;
-        private final long fileSize;
-        private long byteIndex;
+        // the next two bytes, since the last two hold the bit count and bits of the final byte
+        private int next;
+        private int afterNext;
         private int currentByte;
         private int bitsLeft;
 
-        public BitInputStream(InputStream inputStream, long fileSize) {
+        public BitInputStream(InputStream inputStream) throws IOException {
             this.inputStream = inputStream;
-            this.fileSize = fileSize;
-            this.byteIndex = 0L;
+            this.next = inputStream.read();
+            this.afterNext = inputStream.read();
             this.currentByte = 0;
             this.bitsLeft = 0;
         }
 
         public int readBit() throws IOException {
             if (bitsLeft == 0) {
-                byteIndex++;
-                currentByte = inputStream.read();
-                if (currentByte == -1) return -1;
-                if (byteIndex == fileSize-1) {
-                    bitsLeft = currentByte;
-                    currentByte = inputStream.read();
-                    byteIndex++;
+                if (next == -1 || afterNext == -1) return -1;
+                int following = inputStream.read();
+                if (following == -1) {
+                    bitsLeft = next;
+                    currentByte = afterNext;
+                    next = -1;
+                    if (bitsLeft == 0) return -1;
+                } else {
+                    bitsLeft = 8;
+                    currentByte = next;
+                    next = afterNext;
+                    afterNext = following;
                 }
-                else bitsLeft = 8;
             }
             int temp = currentByte;
             temp >>= (bitsLeft-1);
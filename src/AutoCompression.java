@@ -0,0 +1,280 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Compressor choosing an algorithm for every block of the input. A few samples of each block are
+ * used to estimate what Huffman, LZW and the arithmetic coder would produce, from the order-0
+ * entropy and the repeated strings, and the block is coded by the one expected to be smallest,
+ * or stored as it is when nothing is expected to shrink it. Only that algorithm runs on the block.
+ */
+public class AutoCompression implements CompressionAlgorithm {
+
+    // Header: 4 magic bytes and a version byte.
+    //
+    // Blocks: [raw length, compressed length, method, compressed bytes], the method being the
+    // algorithm that wrote the block, closed by an empty block.
+    private static final int MAGIC = 0x4155544F; // "AUTO"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 5;
+    private static final int BLOCK_HEADER_SIZE = 9;
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    private static final int MAX_BLOCK_SIZE = 1 << 30;
+
+    // block methods
+    private static final int STORED = 0;
+    private static final int HUFFMAN = 1;
+    private static final int LZW_METHOD = 2;
+    private static final int ARITHMETIC = 3;
+
+    // sampling
+    private static final int SAMPLES = 8;
+    private static final int SAMPLE_SIZE = 4096;
+    private static final int MIN_MATCH = 4;
+    private static final int HASH_BITS = 14;
+
+    // estimated costs, in bits
+    private static final double HUFFMAN_HEADER_BITS = 8 * 256;
+    private static final double ARITHMETIC_HEADER_BITS = 16 * 256;
+    private static final double LZW_CODE_BITS = 16; // width of the codes once the dictionary has grown
+    private static final double LZW_LITERAL_BITS = 10; // what LZW spends on a byte that doesn't repeat
+    private static final double STORED_MARGIN = 0.97; // a coder must save at least 3% to be used
+
+    private final int blockSize;
+    private final int parallelism;
+
+    public AutoCompression() {
+        this(DEFAULT_BLOCK_SIZE, 1);
+    }
+
+    /**
+     * Creates a compressor choosing the algorithm of every block of blockSize bytes, coding up to
+     * parallelism blocks at once.
+     */
+    public AutoCompression(int blockSize, int parallelism) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE);
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    //
+    // Public Methods
+    //
+
+    @Override
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION);
+        ChannelIO.writeFully(outputChannel, header.flip());
+
+        ChannelIO.codeBlocks(inputChannel, blockSize, parallelism, AutoCompression::compressBlock,
+                block -> writeBlock(outputChannel, block));
+        writeBlock(outputChannel, new Block(0, STORED, new byte[0]));
+    }
+
+    /**
+     * Decodes every block with the algorithm recorded in its header.
+     */
+    @Override
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (ChannelIO.readFully(inputChannel, header) != HEADER_SIZE)
+            throw new IOException("Truncated header");
+        header.flip();
+        if (header.getInt() != MAGIC || header.get() != VERSION)
+            throw new IOException("Not auto compressed data");
+
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        int blocks = 0;
+        while (true) {
+            if (ChannelIO.readFully(inputChannel, blockHeader.clear()) != BLOCK_HEADER_SIZE)
+                throw new IOException("Truncated block header");
+            blockHeader.flip();
+            int rawLength = blockHeader.getInt();
+            int compressedLength = blockHeader.getInt();
+            int method = blockHeader.get();
+            if (rawLength == 0) break;
+            // a block is never stored larger than it is, so neither length can pass MAX_BLOCK_SIZE
+            if (rawLength < 0 || rawLength > MAX_BLOCK_SIZE || compressedLength < 0 || compressedLength > rawLength
+                    || method < STORED || method > ARITHMETIC)
+                throw new IOException("Corrupt block " + blocks);
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+            if (ChannelIO.readFully(inputChannel, compressed) != compressedLength)
+                throw new IOException("Truncated block " + blocks);
+            compressed.flip();
+            if (method == STORED) {
+                if (compressedLength != rawLength) throw new IOException("Corrupt block " + blocks);
+                ChannelIO.writeFully(outputChannel, compressed);
+            } else {
+                ByteBuffer output = ByteBuffer.allocate(rawLength);
+                try {
+                    algorithm(method).decompress(new ByteBufferChannel(compressed), new ByteBufferChannel(output));
+                } catch (BufferOverflowException e) {
+                    throw new IOException("Block " + blocks + " longer than its recorded " + rawLength + " bytes");
+                }
+                if (output.hasRemaining()) throw new IOException("Block " + blocks + " shorter than its recorded " + rawLength + " bytes");
+                ChannelIO.writeFully(outputChannel, output.flip());
+            }
+            blocks++;
+        }
+    }
+
+    public String getCompressedPath(String path) {
+        return path + ".auto";
+    }
+
+    public String getDecompressedPath(String path) {
+        String originalFilePath = path.substring(0, path.length() - 5);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+    }
+
+    //
+    // Private methods
+    //
+
+    private static CompressionAlgorithm algorithm(int method) {
+        return switch (method) {
+            case HUFFMAN -> new Huffman();
+            case LZW_METHOD -> new LZW();
+            case ARITHMETIC -> new ArithmeticCoding();
+            default -> throw new IllegalArgumentException("No algorithm for method " + method);
+        };
+    }
+
+    private static Block compressBlock(byte[] data, int length) throws IOException {
+        int method = choose(data, length);
+        if (method == STORED) return new Block(length, STORED, Arrays.copyOf(data, length));
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+        algorithm(method).compress(new ByteBufferChannel(ByteBuffer.wrap(data, 0, length)), Channels.newChannel(compressed));
+        // a wrong guess never makes a block larger than storing it
+        if (compressed.size() >= length) return new Block(length, STORED, Arrays.copyOf(data, length));
+        return new Block(length, method, compressed.toByteArray());
+    }
+
+    /**
+     * Returns the method expected to give the smallest output for the block, looking only at
+     * SAMPLES pieces of SAMPLE_SIZE bytes spread over it.
+     *
+     * The order-0 cost of the arithmetic coder is the entropy of the byte counts, and Huffman's is
+     * the length of its codes, which is the sum of the weights of the internal nodes of its tree.
+     * Repetition is measured by looking up every position of the samples in a table of the last
+     * position of each hashed MIN_MATCH bytes, shared by all the samples so repeats across the
+     * block are seen too. LZW is costed from the bytes left unmatched and from the codes it needs for
+     * the matches: it learns a repeated string one byte longer at a time, so a long match takes
+     * several codes, about sqrt(length / 8) on the corpora of Benchmark.
+     */
+    static int choose(byte[] data, int length) {
+        double[] costs = estimate(data, length);
+        costs[STORED] *= STORED_MARGIN;
+        int best = STORED;
+        for (int method = HUFFMAN; method <= ARITHMETIC; method++) if (costs[method] < costs[best]) best = method;
+        return best;
+    }
+
+    /**
+     * Returns the estimated output of each method for the block, in bits, indexed by method.
+     */
+    static double[] estimate(byte[] data, int length) {
+        int[] counts = new int[256];
+        int[] table = new int[1 << HASH_BITS];
+        Arrays.fill(table, -1);
+        int samples = Math.min(SAMPLES, Math.max(1, length / SAMPLE_SIZE));
+        long sampled = 0, matched = 0;
+        double matchCodes = 0;
+        for (int s = 0; s < samples; s++) {
+            int start = (int) ((long) length * s / samples);
+            int end = samples == 1 ? length : Math.min(length, start + SAMPLE_SIZE);
+            for (int i = start; i < end; i++) counts[data[i] & 0xFF]++;
+            sampled += end - start;
+            for (int i = start; i + MIN_MATCH <= end; ) {
+                int key = (data[i] & 0xFF) | (data[i + 1] & 0xFF) << 8 | (data[i + 2] & 0xFF) << 16 | data[i + 3] << 24;
+                int slot = (key * 0x9E3779B1) >>> (32 - HASH_BITS);
+                int candidate = table[slot];
+                table[slot] = i;
+                int matchLength = 0;
+                if (candidate >= 0)
+                    while (i + matchLength < end && data[candidate + matchLength] == data[i + matchLength]) matchLength++;
+                if (matchLength < MIN_MATCH) {
+                    i++;
+                    continue;
+                }
+                matched += matchLength;
+                matchCodes += Math.max(1, Math.sqrt(matchLength / 8.0));
+                i += matchLength;
+            }
+        }
+
+        double entropyBits = 0, huffmanBits = huffmanBits(counts);
+        for (int count : counts)
+            if (count > 0) entropyBits -= count * (Math.log((double) count / sampled) / Math.log(2));
+
+        // scale the sample costs to the block
+        double scale = (double) length / sampled;
+        double stored = 8.0 * length;
+        double arithmetic = entropyBits * scale + ARITHMETIC_HEADER_BITS;
+        double huffman = huffmanBits * scale + HUFFMAN_HEADER_BITS;
+        double lzw = ((sampled - matched) * LZW_LITERAL_BITS + matchCodes * LZW_CODE_BITS) * scale;
+
+        return new double[] { stored, huffman, lzw, arithmetic };
+    }
+
+    // the total length of the Huffman codes of the counts
+    private static double huffmanBits(int[] counts) {
+        long[] heap = new long[257];
+        int size = 0;
+        for (int count : counts) if (count > 0) size = push(heap, size, count);
+        if (size == 1) return heap[1]; // a single symbol still takes one bit
+        long bits = 0;
+        while (size > 1) {
+            long first = heap[1];
+            heap[1] = heap[size--];
+            size = siftDown(heap, size);
+            long second = heap[1];
+            heap[1] = heap[size--];
+            size = siftDown(heap, size);
+            bits += first + second;
+            size = push(heap, size, first + second);
+        }
+        return bits;
+    }
+
+    // binary min-heap in heap[1..size]
+    private static int push(long[] heap, int size, long value) {
+        int i = ++size;
+        for ( ; i > 1 && heap[i >> 1] > value; i >>= 1) heap[i] = heap[i >> 1];
+        heap[i] = value;
+        return size;
+    }
+
+    private static int siftDown(long[] heap, int size) {
+        if (size == 0) return 0;
+        long value = heap[1];
+        int i = 1;
+        while (2 * i <= size) {
+            int child = 2 * i;
+            if (child < size && heap[child + 1] < heap[child]) child++;
+            if (heap[child] >= value) break;
+            heap[i] = heap[child];
+            i = child;
+        }
+        heap[i] = value;
+        return size;
+    }
+
+    private static void writeBlock(WritableByteChannel outputChannel, Block block) throws IOException {
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        blockHeader.putInt(block.rawLength()).putInt(block.data().length).put((byte) block.method()).flip();
+        ChannelIO.writeFully(outputChannel, blockHeader);
+        ChannelIO.writeFully(outputChannel, ByteBuffer.wrap(block.data()));
+    }
+
+    private record Block(int rawLength, int method, byte[] data) { }
+}
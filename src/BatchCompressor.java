@@ -0,0 +1,324 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Compresses or decompresses every file of a directory tree into another directory with the
+ * same layout. Each file gets a virtual thread that reads it and writes the result, while the
+ * coding itself runs on a pool of platform threads, one per core by default. Small files are
+ * compressed in memory, everything else is coded straight between the files. The files in flight
+ * hold at most maxBytesInFlight bytes at once, so walking a large tree doesn't fill the memory,
+ * and a file that fails is reported and skipped without stopping the others.
+ *
+ * Arguments: input directory, output directory, then optionally compress or decompress, the
+ * algorithm (huffman, lzw, lz77, arithmetic, rans or auto) and the number of coding threads.
+ */
+public class BatchCompressor {
+    private static final long IN_MEMORY_LIMIT = 64L << 20; // larger files are coded straight between the files
+    private static final int OUTPUT_SLACK = 1 << 12; // in-memory output allowed past the input size
+    private static final long MAX_HELD = 2 * IN_MEMORY_LIMIT + OUTPUT_SLACK; // by one file compressed in memory
+    private static final long STREAM_HELD = 8L << 20; // buffers and tables of a coder working between files
+    private static final int PERMIT_SIZE = 1 << 10; // the in-flight budget is counted in KB
+    private static final String REPORT_NAME = "batch-report.tsv";
+
+    private final Supplier<CompressionAlgorithm> algorithm;
+    private final boolean compress;
+    private final int parallelism;
+    private final long maxBytesInFlight;
+
+    /**
+     * Creates a batch coding with a new algorithm from the supplier for every file, on parallelism
+     * platform threads. The files being read, coded or written at once hold at most maxBytesInFlight
+     * bytes: a file compressed in memory counts its input and as much output, a file coded between
+     * the files counts the 8 MB its coder is allowed for buffers and tables.
+     */
+    public BatchCompressor(Supplier<CompressionAlgorithm> algorithm, boolean compress, int parallelism, long maxBytesInFlight) {
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        if (maxBytesInFlight < MAX_HELD || maxBytesInFlight / PERMIT_SIZE > Integer.MAX_VALUE)
+            throw new IllegalArgumentException("Bytes in flight must be between " + MAX_HELD
+                + " and " + (long) Integer.MAX_VALUE * PERMIT_SIZE);
+        this.algorithm = algorithm;
+        this.compress = compress;
+        this.parallelism = parallelism;
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        if (args.length < 2) {
+            System.err.println("Usage: BatchCompressor <input dir> <output dir> [compress|decompress] [algorithm] [threads]");
+            System.exit(2);
+        }
+        boolean compress = args.length < 3 || !args[2].equals("decompress");
+        String name = args.length > 3 ? args[3] : "auto";
+        int threads = args.length > 4 ? Integer.parseInt(args[4]) : Runtime.getRuntime().availableProcessors();
+        Supplier<CompressionAlgorithm> algorithm = switch (name) {
+            case "huffman" -> Huffman::new;
+            case "lzw" -> LZW::new;
+            case "arithmetic" -> ArithmeticCoding::new;
+            case "rans" -> RANS::new;
+            case "auto" -> AutoCompression::new;
+            case "lz77" -> LZ77::new;
+            default -> throw new IllegalArgumentException("Unknown algorithm: " + name);
+        };
+        // a file coded in memory also holds its output and the tables of its coder
+        long budget = Math.max(MAX_HELD, Runtime.getRuntime().maxMemory() / 4);
+        Path output = Paths.get(args[1]);
+        Report report = new BatchCompressor(algorithm, compress, threads, budget).run(Paths.get(args[0]), output);
+        report.write(output.resolve(REPORT_NAME));
+        System.out.print(report.summary());
+        if (report.failed() > 0) System.exit(1);
+    }
+
+    /**
+     * Codes every regular file under the input directory into the output directory and returns
+     * the result of each one, failures included. Only a failure to walk the input tree is thrown.
+     * The output directory is left out of the walk when it is inside the input tree, and when
+     * decompressing, only the files with the extension of the algorithm are taken.
+     */
+    public Report run(Path inputRoot, Path outputRoot) throws IOException, InterruptedException {
+        Path outputDirectory = outputRoot.toAbsolutePath().normalize();
+        if (outputDirectory.equals(inputRoot.toAbsolutePath().normalize()))
+            throw new IllegalArgumentException("The output directory must differ from the input directory");
+        String probe = algorithm.get().getCompressedPath("file");
+        String extension = probe.substring(probe.lastIndexOf('.'));
+        long start = System.nanoTime();
+        List<Future<Result>> results = new ArrayList<>();
+        ExecutorService pool = Executors.newFixedThreadPool(parallelism);
+        Semaphore inFlight = new Semaphore((int) (maxBytesInFlight / PERMIT_SIZE));
+        try (ExecutorService io = Executors.newVirtualThreadPerTaskExecutor();
+             Stream<Path> files = Files.walk(inputRoot)) {
+            Stream<Path> taken = files.filter(Files::isRegularFile)
+                    .filter(file -> !file.toAbsolutePath().normalize().startsWith(outputDirectory));
+            if (!compress)
+                taken = taken.filter(file -> !file.getFileName().toString().equals(REPORT_NAME)
+                        && file.getFileName().toString().endsWith(extension));
+            for (Path file : (Iterable<Path>) taken::iterator) {
+                // backpressure: the walk waits until the files in flight leave room for this one
+                int permits = permits(file);
+                inFlight.acquire(permits);
+                results.add(io.submit(() -> {
+                    try {
+                        return code(file, outputRoot.resolve(inputRoot.relativize(file).toString()), pool);
+                    } finally {
+                        inFlight.release(permits);
+                    }
+                }));
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        } finally {
+            pool.shutdown();
+        }
+        List<Result> done = new ArrayList<>(results.size());
+        for (Future<Result> result : results) {
+            try {
+                done.add(result.get());
+            } catch (ExecutionException e) {
+                throw new IllegalStateException("File task failed outside of its own handling", e.getCause());
+            }
+        }
+        return new Report(done, System.nanoTime() - start);
+    }
+
+    /**
+     * Returns the KB of the budget a file takes while it is in flight, at least one so that empty
+     * files are bounded too. A file whose size can't be read is charged as empty, its failure is
+     * reported by code.
+     */
+    private int permits(Path file) {
+        long size;
+        try {
+            size = Files.size(file);
+        } catch (IOException e) {
+            size = 0;
+        }
+        long held = inMemory(size) ? 2 * size + OUTPUT_SLACK : STREAM_HELD;
+        return (int) Math.max(1, (held + PERMIT_SIZE - 1) / PERMIT_SIZE);
+    }
+
+    // decompressed output has no bound known in advance, so it always goes straight to the file
+    private boolean inMemory(long inputSize) {
+        return compress && inputSize <= IN_MEMORY_LIMIT;
+    }
+
+    /**
+     * Codes one file, reading and writing on the calling virtual thread and coding on the pool.
+     * Every exception is turned into a failed result.
+     */
+    private Result code(Path input, Path target, ExecutorService pool) {
+        long start = System.nanoTime();
+        long inputSize = -1;
+        try {
+            CompressionAlgorithm coder = algorithm.get();
+            Path output = Paths.get(compress ? coder.getCompressedPath(target.toString()) : coder.getDecompressedPath(target.toString()));
+            if (output.getParent() != null) Files.createDirectories(output.getParent());
+            inputSize = Files.size(input);
+            long outputSize;
+            if (inMemory(inputSize)) {
+                ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(input));
+                try (Output coded = new Output(output, data.remaining() + OUTPUT_SLACK)) {
+                    await(pool.submit(() -> {
+                        coder.compress(new ByteBufferChannel(data), coded);
+                        return null;
+                    }));
+                    outputSize = coded.finish();
+                }
+            } else {
+                outputSize = await(pool.submit(() -> codeFile(coder, input, output)));
+            }
+            return new Result(input, inputSize, outputSize, System.nanoTime() - start, null);
+        } catch (Exception e) {
+            return new Result(input, inputSize, -1, System.nanoTime() - start, e);
+        }
+    }
+
+    private long codeFile(CompressionAlgorithm coder, Path input, Path output) throws IOException {
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE,
+                     StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            if (compress) coder.compress(in, out);
+            else coder.decompress(in, out);
+            return out.size();
+        }
+    }
+
+    private static <T> T await(Future<T> task) throws Exception {
+        try {
+            return task.get();
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof Exception cause ? cause : e;
+        }
+    }
+
+    /**
+     * Growable in-memory output of a coder, up to limit bytes. Past it, what was held is written to
+     * the output file and the rest goes straight there, so an input that doesn't compress can't
+     * hold much more than its own size.
+     */
+    private static final class Output implements WritableByteChannel {
+        private final Path path;
+        private final int limit;
+        private byte[] data;
+        private int size;
+        private FileChannel file; // open once the output went past the limit
+        private long written;
+
+        Output(Path path, long limit) {
+            this.path = path;
+            this.limit = (int) Math.min(Integer.MAX_VALUE - 8, limit);
+            data = new byte[Math.min(this.limit, Math.max(this.limit / 2, 1 << 12))];
+        }
+
+        @Override
+        public int write(ByteBuffer source) throws IOException {
+            int length = source.remaining();
+            if (file == null && (long) size + length > limit) {
+                file = open(path);
+                ChannelIO.writeFully(file, ByteBuffer.wrap(data, 0, size));
+                data = null;
+            }
+            if (file != null) {
+                ChannelIO.writeFully(file, source);
+            } else {
+                if (size + length > data.length)
+                    data = Arrays.copyOf(data, Math.min(limit, Math.max(size + length, 2 * data.length)));
+                source.get(data, size, length);
+                size += length;
+            }
+            written += length;
+            return length;
+        }
+
+        /**
+         * Writes what is still held to the output file and returns the size of the output.
+         */
+        long finish() throws IOException {
+            if (file == null) {
+                file = open(path);
+                ChannelIO.writeFully(file, ByteBuffer.wrap(data, 0, size));
+                data = null;
+            }
+            return written;
+        }
+
+        private static FileChannel open(Path path) throws IOException {
+            return FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE);
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() throws IOException {
+            if (file != null) file.close();
+        }
+    }
+
+    /**
+     * Outcome of one file: its sizes and time, or the error it failed with.
+     */
+    public record Result(Path file, long inputSize, long outputSize, long nanos, Exception error) {
+        public boolean failed() { return error != null; }
+    }
+
+    /**
+     * Results of a whole run, in the order of the files.
+     */
+    public record Report(List<Result> results, long nanos) {
+
+        public long failed() {
+            return results.stream().filter(Result::failed).count();
+        }
+
+        public String summary() {
+            long input = 0, output = 0;
+            for (Result result : results) {
+                if (result.failed()) continue;
+                input += result.inputSize();
+                output += result.outputSize();
+            }
+            StringBuilder summary = new StringBuilder(String.format(Locale.ROOT,
+                    "%d file(s), %d failed, %d -> %d bytes (ratio %.4f), %.1f MB/s, %d ms%n",
+                    results.size(), failed(), input, output, (double) input / Math.max(1, output),
+                    (input / (1024.0 * 1024.0)) / Math.max(1e-9, nanos / 1e9), nanos / 1_000_000));
+            results.stream().filter(Result::failed).sorted(Comparator.comparing(Result::file))
+                    .forEach(result -> summary.append("FAILED ").append(result.file()).append(": ").append(result.error()).append('\n'));
+            return summary.toString();
+        }
+
+        /**
+         * Writes a line per file: path, status, input and output bytes, milliseconds and error.
+         */
+        public void write(Path path) throws IOException {
+            if (path.getParent() != null) Files.createDirectories(path.getParent());
+            try (BufferedWriter writer = Files.newBufferedWriter(path)) {
+                writer.write("file\tstatus\tinput_bytes\toutput_bytes\tms\terror\n");
+                for (Result result : results) {
+                    writer.write(String.format(Locale.ROOT, "%s\t%s\t%d\t%d\t%.3f\t%s%n", result.file(),
+                            result.failed() ? "failed" : "ok", result.inputSize(), result.outputSize(), result.nanos() / 1e6,
+                            result.failed() ? String.valueOf(result.error()).replace('\t', ' ').replace('\n', ' ') : ""));
+                }
+            }
+        }
+    }
+}
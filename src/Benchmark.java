@@ -0,0 +1,444 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.*;
+import java.util.function.Supplier;
+import java.util.zip.CRC32;
+
+/**
+ * Throughput benchmarks on generated corpora (used for testing).
+ * Every algorithm runs in memory through the ByteBuffer channels, so disk speed is left out.
+ * Each measurement is a few warmup iterations followed by measured ones, every iteration
+ * repeating the operation for at least MIN_ITERATION_NANOS, and reports the mean throughput
+ * with its standard deviation, the compression ratio and the bytes allocated per input byte.
+ * Everything runs in a single JVM without forks, so the figures are indicative: they show large
+ * changes, not differences of a few percent.
+ *
+ * Arguments, all optional: sizes=1K,1M,16M corpora=text,random,repetitive,binary
+ * algorithms=huffman-1,lzw,... warmup=2 iterations=5 output=results.tsv baseline=benchmark-baseline.tsv
+ * or "scaling" to measure block-mode LZW from one thread up to every core,
+ * or large=3G to round-trip a sparse file of that size through one of each algorithm, file to file,
+ * or "boundaries" to round-trip LZW inputs around every code width change.
+ */
+public class Benchmark {
+    private static final String WORDS_PATH = "lorem20K.txt"; // source of words for the text corpus
+    private static final long MIN_ITERATION_NANOS = 200_000_000L;
+    private static final String COLUMNS = "corpus\tsize\talgorithm\tcompress_mbps\tcompress_sd\tdecompress_mbps\tdecompress_sd"
+            + "\tratio\tcompress_alloc_b_per_byte\tdecompress_alloc_b_per_byte\tgc_count";
+
+    private static final Map<String, Supplier<CompressionAlgorithm>> ALGORITHMS = new LinkedHashMap<>();
+    static {
+        ALGORITHMS.put("huffman-1", () -> new Huffman(1));
+        ALGORITHMS.put("huffman-2", () -> new Huffman(2));
+        ALGORITHMS.put("huffman-3", () -> new Huffman(3));
+        ALGORITHMS.put("huffman-4", () -> new Huffman(4));
+        ALGORITHMS.put("huffman-auto", () -> new Huffman(Huffman.AUTO));
+        ALGORITHMS.put("lzw", LZW::new);
+        ALGORITHMS.put("arithmetic", ArithmeticCoding::new);
+        // not in the default set
+        ALGORITHMS.put("arithmetic-adaptive", () -> new ArithmeticCoding(ArithmeticCoding.ADAPTIVE_MODEL));
+        ALGORITHMS.put("arithmetic-ppm", () -> new ArithmeticCoding(ArithmeticCoding.PPM_MODEL, 3, ArithmeticCoding.RANGE_CODER));
+        ALGORITHMS.put("adaptive-huffman", AdaptiveHuffman::new);
+        ALGORITHMS.put("rans", RANS::new);
+        ALGORITHMS.put("auto", AutoCompression::new);
+        ALGORITHMS.put("lz77-1", () -> new LZ77(1));
+        ALGORITHMS.put("lz77", LZ77::new);
+        ALGORITHMS.put("lz77-9", () -> new LZ77(9));
+        ALGORITHMS.put("container", () -> new BlockContainer(new LZW()));
+    }
+    private static final String DEFAULT_ALGORITHMS = "huffman-1,huffman-2,huffman-3,huffman-4,huffman-auto,lzw,arithmetic";
+    // one of each algorithm and arithmetic model, for the large file check
+    private static final String LARGE_ALGORITHMS = "huffman-1,huffman-auto,lzw,arithmetic,arithmetic-adaptive,arithmetic-ppm,"
+            + "adaptive-huffman,rans,lz77,auto,container";
+    private static final String DEFAULT_CORPORA = "text,random,repetitive,binary";
+    private static final String DEFAULT_SIZES = "1K,1M,16M"; // up to 1G, given enough heap
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int i = arg.indexOf('=');
+            options.put(i < 0 ? arg : arg.substring(0, i), i < 0 ? "" : arg.substring(i + 1));
+        }
+        int warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+        int iterations = Integer.parseInt(options.getOrDefault("iterations", "5"));
+        if (options.containsKey("scaling")) {
+            lzwScaling(generate("text", 64 << 20), 1 << 20, warmup, iterations);
+            return;
+        }
+        if (options.containsKey("boundaries")) {
+            if (!lzwBoundaries()) System.exit(1);
+            return;
+        }
+        if (options.containsKey("large")) {
+            if (!largeFile(parseSize(options.get("large")), options.getOrDefault("algorithms", LARGE_ALGORITHMS).split(",")))
+                System.exit(1);
+            return;
+        }
+
+        Map<String, double[]> baseline = options.containsKey("baseline")
+                ? readResults(Paths.get(options.get("baseline"))) : Map.of();
+        List<String> results = new ArrayList<>();
+        System.out.printf("%-11s %6s %-20s %18s %18s %8s %9s %9s%n", "corpus", "size", "algorithm",
+                "compress MB/s", "decompress MB/s", "ratio", "alloc c", "alloc d");
+        for (String corpus : options.getOrDefault("corpora", DEFAULT_CORPORA).split(",")) {
+            for (String size : options.getOrDefault("sizes", DEFAULT_SIZES).split(",")) {
+                byte[] data = generate(corpus, parseSize(size));
+                for (String name : options.getOrDefault("algorithms", DEFAULT_ALGORITHMS).split(",")) {
+                    Supplier<CompressionAlgorithm> algorithm = ALGORITHMS.get(name);
+                    if (algorithm == null) throw new IllegalArgumentException("Unknown algorithm: " + name);
+                    Result result = measure(algorithm.get(), data, warmup, iterations);
+                    String key = corpus + "\t" + size + "\t" + name;
+                    results.add(key + "\t" + result.format());
+                    System.out.printf("%-11s %6s %-20s %9.1f +- %5.1f %9.1f +- %5.1f %8.4f %9.2f %9.2f%s%n", corpus, size, name,
+                            result.compress.mean(), result.compress.sd(), result.decompress.mean(), result.decompress.sd(),
+                            result.ratio, result.compressAllocation, result.decompressAllocation,
+                            compareToBaseline(baseline.get(key), result));
+                }
+                data = null; // the next corpus may be as large as this one
+            }
+        }
+        if (options.containsKey("output")) {
+            try (BufferedWriter writer = Files.newBufferedWriter(Paths.get(options.get("output")))) {
+                writer.write("# indicative, single JVM without forks: " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                        + ", " + Runtime.getRuntime().availableProcessors() + " core(s), warmup " + warmup
+                        + ", iterations " + iterations + "\n");
+                writer.write(COLUMNS + "\n");
+                for (String line : results) writer.write(line + "\n");
+            }
+        }
+    }
+
+    /**
+     * Measures block-mode LZW from one thread up to the number of available cores.
+     */
+    private static void lzwScaling(byte[] data, int blockSize, int warmup, int iterations) throws IOException {
+        System.out.println("LZW block mode, " + (blockSize >> 10) + " KB blocks");
+        int cores = Runtime.getRuntime().availableProcessors();
+        for (int threads = 1; ; threads = Math.min(threads * 2, cores)) {
+            Result result = measure(new LZW(16, blockSize, threads), data, warmup, iterations);
+            System.out.printf("%-16s compress %8.1f MB/s   decompress %8.1f MB/s   ratio %.4f   alloc %.2f / %.2f B/byte%n",
+                    threads + " thread(s)", result.compress.mean(), result.decompress.mean(), result.ratio,
+                    result.compressAllocation, result.decompressAllocation);
+            if (threads == cores) break;
+        }
+        System.out.println("============================================");
+    }
+
+    /**
+     * Round-trips random inputs whose lengths sweep the points where the LZW code width grows, in
+     * stream mode and in block mode. Random bytes give about one code per byte, so an input of
+     * 2^m - 258 bytes ends close to where the dictionary reaches 2^m codes and the codes, END
+     * included, get one bit wider. Returns whether every round trip was exact.
+     */
+    private static boolean lzwBoundaries() throws IOException {
+        Random random = new Random(42);
+        int checked = 0, failed = 0;
+        for (int width : new int[] { 9, 12, 16 }) {
+            for (int m = 8; m <= width + 1; m++) {
+                int boundary = Math.max(0, (1 << m) - 258);
+                for (int length = Math.max(0, boundary - 40); length <= boundary + 40; length++) {
+                    byte[] data = new byte[length];
+                    random.nextBytes(data);
+                    for (int blockSize : new int[] { 0, 1000 }) {
+                        checked++;
+                        if (roundTrips(new LZW(width, blockSize, 2), data)) continue;
+                        failed++;
+                        System.out.println("FAILED width " + width + ", block size " + blockSize + ", " + length + " bytes");
+                    }
+                }
+            }
+        }
+        System.out.println(checked + " round trips, " + failed + " failed");
+        return failed == 0;
+    }
+
+    private static boolean roundTrips(CompressionAlgorithm algorithm, byte[] data) {
+        try {
+            Output compressed = new Output(data.length + 1024);
+            algorithm.compress(new ByteBufferChannel(ByteBuffer.wrap(data)), compressed);
+            Output decompressed = new Output(data.length);
+            algorithm.decompress(new ByteBufferChannel(ByteBuffer.wrap(compressed.data, 0, compressed.size)), decompressed);
+            return Arrays.equals(data, 0, data.length, decompressed.data, 0, decompressed.size);
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Round-trips a sparse file of the given size through each algorithm, from file to file, and
+     * checks the size and CRC32 of the result. The file is mostly holes, which read as zeros, with
+     * 1 MB of text every 256 MB, so counts, unit numbers and positions all go past 32 bits.
+     * Returns whether every round trip was exact.
+     */
+    private static boolean largeFile(long size, String[] algorithms) throws IOException {
+        Path input = Files.createTempFile("large", ".bin");
+        Path compressed = Files.createTempFile("large", ".compressed");
+        try {
+            CRC32 expected = new CRC32();
+            try (FileChannel channel = FileChannel.open(input, StandardOpenOption.WRITE)) {
+                ByteBuffer text = ByteBuffer.wrap(generate("text", 1 << 20));
+                for (long position = 0; position < size; position += 256L << 20)
+                    channel.write(text.clear().limit((int) Math.min(text.capacity(), size - position)), position);
+                channel.truncate(size);
+                if (channel.size() < size) channel.write(ByteBuffer.allocate(1), size - 1);
+            }
+            try (FileChannel channel = FileChannel.open(input, StandardOpenOption.READ)) {
+                ByteBuffer buffer = ByteBuffer.allocate(1 << 20);
+                while (channel.read(buffer.clear()) != -1) expected.update(buffer.flip());
+            }
+            System.out.println("Sparse file of " + size + " bytes, CRC32 " + Long.toHexString(expected.getValue()));
+            boolean passed = true;
+            for (String name : algorithms) {
+                Supplier<CompressionAlgorithm> supplier = ALGORITHMS.get(name);
+                if (supplier == null) throw new IllegalArgumentException("Unknown algorithm: " + name);
+                CompressionAlgorithm algorithm = supplier.get();
+                long start = System.nanoTime();
+                try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+                     FileChannel out = FileChannel.open(compressed, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                    algorithm.compress(in, out);
+                }
+                long compressTime = System.nanoTime() - start;
+                Output decompressed = new Output(0);
+                decompressed.discard = true;
+                decompressed.checksum = new CRC32();
+                start = System.nanoTime();
+                try (FileChannel in = FileChannel.open(compressed, StandardOpenOption.READ)) {
+                    algorithm.decompress(in, decompressed);
+                }
+                long decompressTime = System.nanoTime() - start;
+                boolean ok = decompressed.written == size && decompressed.checksum.getValue() == expected.getValue();
+                passed &= ok;
+                System.out.printf("%-20s %s  compressed %d bytes  compress %8.1f MB/s  decompress %8.1f MB/s%n", name,
+                        ok ? "ok    " : "FAILED", Files.size(compressed), megabytesPerSecond(size, compressTime),
+                        megabytesPerSecond(size, decompressTime));
+            }
+            return passed;
+        } finally {
+            Files.deleteIfExists(input);
+            Files.deleteIfExists(compressed);
+        }
+    }
+
+    //
+    // Measurement
+    //
+
+    private record Statistic(double mean, double sd) {
+        static Statistic of(double[] samples) {
+            double mean = Arrays.stream(samples).average().orElse(0);
+            double variance = Arrays.stream(samples).map(x -> (x - mean) * (x - mean)).sum() / Math.max(1, samples.length - 1);
+            return new Statistic(mean, Math.sqrt(variance));
+        }
+    }
+
+    private record Result(Statistic compress, Statistic decompress, double ratio,
+                          double compressAllocation, double decompressAllocation, long gcCount) {
+        String format() {
+            return String.format(Locale.ROOT, "%.2f\t%.2f\t%.2f\t%.2f\t%.4f\t%.3f\t%.3f\t%d", compress.mean(), compress.sd(),
+                    decompress.mean(), decompress.sd(), ratio, compressAllocation, decompressAllocation, gcCount);
+        }
+    }
+
+    private static Result measure(CompressionAlgorithm algorithm, byte[] data, int warmup, int iterations) throws IOException {
+        Output compressed = new Output(data.length / 2 + 1024);
+        Output decompressed = new Output(0);
+        decompressed.discard = true;
+
+        // check the round trip once, outside of the measurement
+        compressed.reset();
+        algorithm.compress(new ByteBufferChannel(ByteBuffer.wrap(data)), compressed);
+        decompressed.reset();
+        decompressed.checksum = new CRC32();
+        algorithm.decompress(new ByteBufferChannel(ByteBuffer.wrap(compressed.data, 0, compressed.size)), decompressed);
+        CRC32 expected = new CRC32();
+        expected.update(data);
+        if (decompressed.size != data.length || decompressed.checksum.getValue() != expected.getValue())
+            throw new IllegalStateException(algorithm.getClass().getSimpleName() + " round trip failed");
+        decompressed.checksum = null;
+        double ratio = (double) data.length / Math.max(1, compressed.size);
+
+        Operation compress = () -> {
+            compressed.reset();
+            algorithm.compress(new ByteBufferChannel(ByteBuffer.wrap(data)), compressed);
+        };
+        Operation decompress = () -> {
+            decompressed.reset();
+            algorithm.decompress(new ByteBufferChannel(ByteBuffer.wrap(compressed.data, 0, compressed.size)), decompressed);
+        };
+        long gcBefore = gcCount();
+        double[] compressSamples = run(compress, data.length, warmup, iterations);
+        double compressAllocation = allocatedPerByte(compress, data.length);
+        double[] decompressSamples = run(decompress, data.length, warmup, iterations);
+        double decompressAllocation = allocatedPerByte(decompress, data.length);
+        return new Result(Statistic.of(compressSamples), Statistic.of(decompressSamples), ratio,
+                compressAllocation, decompressAllocation, gcCount() - gcBefore);
+    }
+
+    private interface Operation {
+        void run() throws IOException;
+    }
+
+    /**
+     * Returns the MB/s of each measured iteration, after the warmup ones.
+     */
+    private static double[] run(Operation operation, long bytes, int warmup, int iterations) throws IOException {
+        double[] samples = new double[iterations];
+        for (int i = -warmup; i < iterations; i++) {
+            long operations = 0;
+            long start = System.nanoTime(), elapsed;
+            do {
+                operation.run();
+                operations++;
+                elapsed = System.nanoTime() - start;
+            } while (elapsed < MIN_ITERATION_NANOS);
+            if (i >= 0) samples[i] = megabytesPerSecond(bytes * operations, elapsed);
+        }
+        return samples;
+    }
+
+    // bytes allocated by all threads for one operation, per input byte, so the fork-join workers
+    // of the block and parallel modes are counted, including those that ended with their pool
+    private static double allocatedPerByte(Operation operation, long bytes) throws IOException {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long before = threads.getTotalThreadAllocatedBytes();
+        operation.run();
+        return (double) (threads.getTotalThreadAllocatedBytes() - before) / Math.max(1, bytes);
+    }
+
+    private static long gcCount() {
+        long count = 0;
+        for (GarbageCollectorMXBean collector : ManagementFactory.getGarbageCollectorMXBeans())
+            count += Math.max(0, collector.getCollectionCount());
+        return count;
+    }
+
+    private static double megabytesPerSecond(long bytes, long nanos) {
+        return (bytes / (1024.0 * 1024.0)) / (nanos / 1e9);
+    }
+
+    /**
+     * Growable in-memory output, reused across operations so that only the algorithm allocates.
+     */
+    private static final class Output implements WritableByteChannel {
+        private byte[] data;
+        private int size;
+        private long written; // every byte, discarded ones included
+        private boolean discard; // only count and checksum the bytes
+        private CRC32 checksum;
+
+        Output(int capacity) {
+            data = new byte[Math.max(capacity, 1 << 16)];
+        }
+
+        void reset() { size = 0; }
+
+        @Override
+        public int write(ByteBuffer source) {
+            int length = source.remaining();
+            if (checksum != null) checksum.update(source.duplicate());
+            if (discard) {
+                source.position(source.limit());
+            } else {
+                if (size + length > data.length) data = Arrays.copyOf(data, (int) Math.min(Integer.MAX_VALUE - 8,
+                        Math.max((long) size + length, 2L * data.length)));
+                source.get(data, size, length);
+            }
+            size += length;
+            written += length;
+            return length;
+        }
+
+        @Override
+        public boolean isOpen() { return true; }
+
+        @Override
+        public void close() { }
+    }
+
+    //
+    // Baseline
+    //
+
+    private static Map<String, double[]> readResults(Path path) throws IOException {
+        Map<String, double[]> results = new HashMap<>();
+        for (String line : Files.readAllLines(path)) {
+            if (line.startsWith("#") || line.startsWith("corpus")) continue;
+            String[] fields = line.split("\t");
+            results.put(fields[0] + "\t" + fields[1] + "\t" + fields[2],
+                    new double[] { Double.parseDouble(fields[3]), Double.parseDouble(fields[5]) });
+        }
+        return results;
+    }
+
+    private static String compareToBaseline(double[] baseline, Result result) {
+        if (baseline == null) return "";
+        return String.format("   vs baseline %+6.1f%% %+6.1f%%", 100 * (result.compress.mean() / baseline[0] - 1),
+                100 * (result.decompress.mean() / baseline[1] - 1));
+    }
+
+    //
+    // Corpora
+    //
+
+    private static long parseSize(String size) {
+        long unit = switch (Character.toUpperCase(size.charAt(size.length() - 1))) {
+            case 'K' -> 1L << 10;
+            case 'M' -> 1L << 20;
+            case 'G' -> 1L << 30;
+            default -> 1;
+        };
+        return Long.parseLong(unit == 1 ? size : size.substring(0, size.length() - 1)) * unit;
+    }
+
+    /**
+     * Returns a corpus of the given size:
+     * text is random words from the lorem file, random is uniform bytes, repetitive is a short
+     * phrase repeated with rare changes, binary is records of counters, small deltas and floats.
+     */
+    private static byte[] generate(String corpus, long size) throws IOException {
+        if (size > Integer.MAX_VALUE - 8) throw new IllegalArgumentException("Corpus too large: " + size);
+        byte[] data = new byte[(int) size];
+        Random random = new Random(42);
+        switch (corpus) {
+            case "text" -> {
+                String[] words = Files.readString(Paths.get(WORDS_PATH), StandardCharsets.ISO_8859_1).split("\\s+");
+                int position = 0;
+                while (position < data.length) {
+                    byte[] word = (words[random.nextInt(words.length)] + ' ').getBytes(StandardCharsets.ISO_8859_1);
+                    int length = Math.min(word.length, data.length - position);
+                    System.arraycopy(word, 0, data, position, length);
+                    position += length;
+                }
+            }
+            case "random" -> random.nextBytes(data);
+            case "repetitive" -> {
+                byte[] phrase = "the quick brown fox jumps over the lazy dog. ".getBytes(StandardCharsets.ISO_8859_1);
+                for (int i = 0; i < data.length; i++) data[i] = phrase[i % phrase.length];
+                for (int i = 0; i < data.length / 4096; i++) data[random.nextInt(data.length)] = (byte) random.nextInt(256);
+            }
+            case "binary" -> {
+                ByteBuffer buffer = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+                int counter = 0, value = 0;
+                while (buffer.remaining() >= 12) {
+                    buffer.putInt(counter++);
+                    value += random.nextInt(64) - 32;
+                    buffer.putInt(value);
+                    buffer.putFloat((float) random.nextGaussian());
+                }
+                while (buffer.hasRemaining()) buffer.put((byte) 0);
+            }
+            default -> throw new IllegalArgumentException("Unknown corpus: " + corpus);
+        }
+        return data;
+    }
+}
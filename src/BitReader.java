@@ -0,0 +1,80 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Reads variable-width bit fields (most significant bit first) from a buffered channel.
+ */
+final class BitReader implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long accumulator;
+    private int availableBits;
+    private boolean endOfInput;
+
+    BitReader(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        this.buffer.limit(0);
+    }
+
+    /**
+     * Reads the next count bits (1 <= count <= 32), failing if the input ends first.
+     */
+    int read(int count) throws IOException {
+        int value = peek(count);
+        if (availableBits < count) throw new EOFException("Unexpected end of bit stream");
+        availableBits -= count;
+        return value;
+    }
+
+    /**
+     * Returns the next count bits (1 <= count <= 32) without consuming them.
+     * Bits past the end of the input read as zero.
+     */
+    int peek(int count) throws IOException {
+        if (availableBits < count) refill();
+        long mask = (1L << count) - 1;
+        if (availableBits >= count) return (int) ((accumulator >>> (availableBits - count)) & mask);
+        return (int) ((accumulator << (count - availableBits)) & mask);
+    }
+
+    /**
+     * Consumes count bits previously returned by {@link #peek(int)}.
+     */
+    void skip(int count) throws IOException {
+        if (availableBits < count) throw new EOFException("Unexpected end of bit stream");
+        availableBits -= count;
+    }
+
+    /**
+     * Drops the remaining bits of the current byte.
+     */
+    void alignToByte() {
+        availableBits -= availableBits & 7;
+    }
+
+    private void refill() throws IOException {
+        while (availableBits <= 56) {
+            if (!buffer.hasRemaining()) {
+                if (endOfInput) return;
+                buffer.clear();
+                int read = channel.read(buffer);
+                while (read == 0) read = channel.read(buffer);
+                buffer.flip();
+                if (read == -1) {
+                    endOfInput = true;
+                    return;
+                }
+            }
+            accumulator = (accumulator << 8) | (buffer.get() & 0xFF);
+            availableBits += 8;
+        }
+    }
+
+    @Override
+    public void close() throws IOException { channel.close(); }
+}
@@ -0,0 +1,94 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Writes variable-width bit fields (most significant bit first) into a buffered channel.
+ */
+final class BitWriter implements AutoCloseable {
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final WritableByteChannel channel;
+    private final ByteBuffer buffer;
+    private long accumulator;
+    private int pendingBits;
+    private long bitsWritten;
+
+    BitWriter(WritableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    }
+
+    /**
+     * Appends the lowest count bits of the given value (0 <= count <= 64).
+     */
+    void write(long bits, int count) throws IOException {
+        if (count == 0) return;
+        if (count > 56) {
+            write(bits >>> 32, count - 32);
+            write(bits, 32);
+            return;
+        }
+        accumulator = (accumulator << count) | (bits & (-1L >>> (64 - count)));
+        pendingBits += count;
+        bitsWritten += count;
+        while (pendingBits >= 8) {
+            pendingBits -= 8;
+            if (!buffer.hasRemaining()) drain();
+            buffer.put((byte) (accumulator >>> pendingBits));
+        }
+    }
+
+    /**
+     * Appends the first bitCount bits of the given bytes, as produced by another bit writer.
+     */
+    void write(byte[] data, long bitCount) throws IOException {
+        int fullBytes = (int) (bitCount >>> 3);
+        if (pendingBits == 0) {
+            // byte aligned, the bytes can be copied as they are
+            for (int offset = 0; offset < fullBytes; ) {
+                if (!buffer.hasRemaining()) drain();
+                int length = Math.min(fullBytes - offset, buffer.remaining());
+                buffer.put(data, offset, length);
+                offset += length;
+            }
+            bitsWritten += (long) fullBytes << 3;
+        } else {
+            for (int i = 0; i < fullBytes; i++) write(data[i] & 0xFF, 8);
+        }
+        int rest = (int) (bitCount & 7);
+        if (rest > 0) write((data[fullBytes] & 0xFF) >>> (8 - rest), rest);
+    }
+
+    /**
+     * Returns the number of bits written so far, including any bits not yet flushed.
+     */
+    long getBitsWritten() { return bitsWritten; }
+
+    /**
+     * Pads the current byte with zero bits.
+     */
+    void alignToByte() throws IOException {
+        if (pendingBits > 0) write(0, 8 - pendingBits);
+    }
+
+    /**
+     * Pads to a byte boundary and pushes all buffered bytes into the channel.
+     */
+    void flush() throws IOException {
+        alignToByte();
+        drain();
+    }
+
+    private void drain() throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) channel.write(buffer);
+        buffer.clear();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+}
@@ -0,0 +1,318 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.zip.CRC32C;
+
+/**
+ * Container splitting the input into independent blocks, each compressed by the same algorithm.
+ * The file names its algorithm, so it is decompressed without knowing how it was written, every
+ * block is checked against a CRC32C of its data, and a byte range of the original data can be
+ * read by decoding only the blocks that cover it.
+ */
+public class BlockContainer implements CompressionAlgorithm {
+
+    // Header: 4 magic bytes, a version byte and the algorithm id.
+    //
+    // Blocks: [raw length, compressed length, CRC32C of the raw data, compressed bytes], each one
+    // the complete output of the algorithm for that part of the input, closed by an empty block.
+    //
+    // Index: (raw offset, compressed offset) of every block, then a footer of (raw size, index
+    // offset, block count, magic) so the index can be found from the end of the file.
+    private static final int MAGIC = 0x4C43424B; // "LCBK"
+    private static final int VERSION = 2;
+    private static final int HEADER_SIZE = 6;
+    private static final int BLOCK_HEADER_SIZE = 12;
+    private static final int INDEX_ENTRY_SIZE = 16;
+    private static final int FOOTER_SIZE = 24;
+    private static final int DEFAULT_BLOCK_SIZE = 1 << 20;
+    private static final int MAX_BLOCK_SIZE = 1 << 30;
+
+    // algorithm ids stored in the header
+    private static final int HUFFMAN_ID = 1;
+    private static final int LZW_ID = 2;
+    private static final int ADAPTIVE_HUFFMAN_ID = 3;
+    private static final int ARITHMETIC_CODING_ID = 4;
+    private static final int RANS_ID = 5;
+    private static final int AUTO_ID = 6;
+    private static final int LZ77_ID = 7;
+
+    private final CompressionAlgorithm algorithm;
+    private final int blockSize;
+    private final int parallelism;
+
+    public BlockContainer(CompressionAlgorithm algorithm) {
+        this(algorithm, DEFAULT_BLOCK_SIZE, 1);
+    }
+
+    /**
+     * Creates a container compressing blocks of blockSize bytes with the given algorithm,
+     * up to parallelism blocks at once.
+     */
+    public BlockContainer(CompressionAlgorithm algorithm, int blockSize, int parallelism) {
+        if (blockSize < 1 || blockSize > MAX_BLOCK_SIZE)
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE);
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        algorithmId(algorithm);
+        this.algorithm = algorithm;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+    }
+
+    //
+    // Public Methods
+    //
+
+    @Override
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.putInt(MAGIC).put((byte) VERSION).put((byte) algorithmId(algorithm));
+        ChannelIO.writeFully(outputChannel, header.flip());
+
+        Index index = new Index();
+        ChannelIO.codeBlocks(inputChannel, blockSize, parallelism,
+                (data, length) -> compressBlock(algorithm, data, length),
+                block -> writeBlock(outputChannel, block, index));
+        writeBlock(outputChannel, new Block(0, 0, new byte[0]), null);
+        index.write(outputChannel);
+    }
+
+    /**
+     * Decompresses every block in order with the algorithm named in the header, whatever the
+     * algorithm of this container.
+     */
+    @Override
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        CompressionAlgorithm decoder = readHeader(inputChannel);
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long rawSize = 0;
+        int blocks = 0;
+        while (true) {
+            if (ChannelIO.readFully(inputChannel, blockHeader.clear()) != BLOCK_HEADER_SIZE)
+                throw new IOException("Truncated block container");
+            blockHeader.flip();
+            int rawLength = blockHeader.getInt();
+            int compressedLength = blockHeader.getInt();
+            int checksum = blockHeader.getInt();
+            if (rawLength == 0) break;
+            if (rawLength < 0 || compressedLength < 0)
+                throw new IOException("Corrupt block " + blocks);
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+            if (ChannelIO.readFully(inputChannel, compressed) != compressedLength)
+                throw new IOException("Truncated block container");
+            ChannelIO.writeFully(outputChannel, ByteBuffer.wrap(decompressBlock(decoder, compressed.flip(), rawLength, checksum)));
+            rawSize += rawLength;
+            blocks++;
+        }
+        ByteBuffer index = ByteBuffer.allocate(blocks * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+        if (ChannelIO.readFully(inputChannel, index) != index.capacity())
+            throw new IOException("Truncated block index");
+        int footer = index.capacity() - FOOTER_SIZE;
+        if (index.getLong(footer) != rawSize || index.getInt(footer + 16) != blocks || index.getInt(footer + 20) != MAGIC)
+            throw new IOException("Corrupt block index");
+    }
+
+    /**
+     * Returns the size of the original data of a container.
+     */
+    public static long size(SeekableByteChannel input) throws IOException {
+        return Index.read(input).rawSize;
+    }
+
+    /**
+     * Writes length bytes of the original data starting at the given offset, decoding only the
+     * blocks that hold them.
+     */
+    public static void decompressRange(SeekableByteChannel input, long offset, long length,
+                                       WritableByteChannel output) throws IOException {
+        input.position(0);
+        CompressionAlgorithm decoder = readHeader(input);
+        Index index = Index.read(input);
+        if (offset < 0 || length < 0 || offset + length > index.rawSize)
+            throw new IllegalArgumentException("Range [" + offset + ", " + (offset + length)
+                + ") outside the " + index.rawSize + " bytes of data");
+
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        long end = offset + length;
+        for (int i = index.find(offset); offset < end; i++) {
+            input.position(index.compressedOffsets[i]);
+            if (ChannelIO.readFully(input, blockHeader.clear()) != BLOCK_HEADER_SIZE)
+                throw new IOException("Truncated block container");
+            blockHeader.flip();
+            int rawLength = blockHeader.getInt();
+            int compressedLength = blockHeader.getInt();
+            int checksum = blockHeader.getInt();
+            if (rawLength != index.rawLength(i) || compressedLength < 0)
+                throw new IOException("Corrupt block " + i);
+            ByteBuffer compressed = ByteBuffer.allocate(compressedLength);
+            if (ChannelIO.readFully(input, compressed) != compressedLength)
+                throw new IOException("Truncated block container");
+            byte[] data = decompressBlock(decoder, compressed.flip(), rawLength, checksum);
+
+            int start = (int) (offset - index.rawOffsets[i]);
+            int count = (int) Math.min(rawLength - start, end - offset);
+            ChannelIO.writeFully(output, ByteBuffer.wrap(data, start, count));
+            offset += count;
+        }
+    }
+
+    public String getCompressedPath(String path) {
+        return path + ".lcb";
+    }
+
+    public String getDecompressedPath(String path) {
+        String originalFilePath = path.substring(0, path.length() - 4);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+    }
+
+    //
+    // Private methods
+    //
+
+    private static int algorithmId(CompressionAlgorithm algorithm) {
+        if (algorithm instanceof Huffman) return HUFFMAN_ID;
+        if (algorithm instanceof LZW) return LZW_ID;
+        if (algorithm instanceof AdaptiveHuffman) return ADAPTIVE_HUFFMAN_ID;
+        if (algorithm instanceof ArithmeticCoding) return ARITHMETIC_CODING_ID;
+        if (algorithm instanceof RANS) return RANS_ID;
+        if (algorithm instanceof AutoCompression) return AUTO_ID;
+        if (algorithm instanceof LZ77) return LZ77_ID;
+        throw new IllegalArgumentException("No container id for " + algorithm.getClass().getName());
+    }
+
+    private static CompressionAlgorithm readHeader(ReadableByteChannel inputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (ChannelIO.readFully(inputChannel, header) != HEADER_SIZE)
+            throw new IOException("Truncated block container header");
+        header.flip();
+        if (header.getInt() != MAGIC || header.get() != VERSION)
+            throw new IOException("Not a block container");
+        int id = header.get();
+        return switch (id) {
+            case HUFFMAN_ID -> new Huffman();
+            case LZW_ID -> new LZW();
+            case ADAPTIVE_HUFFMAN_ID -> new AdaptiveHuffman();
+            case ARITHMETIC_CODING_ID -> new ArithmeticCoding(); // the model and coder are in its own header
+            case RANS_ID -> new RANS();
+            case AUTO_ID -> new AutoCompression();
+            case LZ77_ID -> new LZ77();
+            default -> throw new IOException("Unknown algorithm id: " + id);
+        };
+    }
+
+    private static Block compressBlock(CompressionAlgorithm algorithm, byte[] data, int length) throws IOException {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, length);
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+        algorithm.compress(new ByteBufferChannel(ByteBuffer.wrap(data, 0, length)), Channels.newChannel(compressed));
+        return new Block(length, (int) crc.getValue(), compressed.toByteArray());
+    }
+
+    private static byte[] decompressBlock(CompressionAlgorithm decoder, ByteBuffer compressed, int rawLength, int checksum) throws IOException {
+        byte[] data = new byte[rawLength];
+        ByteBuffer output = ByteBuffer.wrap(data);
+        try {
+            decoder.decompress(new ByteBufferChannel(compressed), new ByteBufferChannel(output));
+        } catch (BufferOverflowException e) {
+            throw new IOException("Block longer than its recorded " + rawLength + " bytes");
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data);
+        if (output.hasRemaining() || (int) crc.getValue() != checksum)
+            throw new IOException("Block checksum mismatch");
+        return data;
+    }
+
+    private static void writeBlock(WritableByteChannel outputChannel, Block block, Index index) throws IOException {
+        if (index != null) index.add(block.rawLength(), BLOCK_HEADER_SIZE + block.data().length);
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        blockHeader.putInt(block.rawLength()).putInt(block.data().length).putInt(block.checksum()).flip();
+        ChannelIO.writeFully(outputChannel, blockHeader);
+        ChannelIO.writeFully(outputChannel, ByteBuffer.wrap(block.data()));
+    }
+
+    private record Block(int rawLength, int checksum, byte[] data) { }
+
+    /**
+     * Raw and compressed offsets of the blocks, in order.
+     */
+    private static final class Index {
+        private long[] rawOffsets = new long[16];
+        private long[] compressedOffsets = new long[16];
+        private int size;
+        private long rawSize;
+        private long compressedSize = HEADER_SIZE;
+
+        void add(int rawLength, int compressedLength) {
+            if (size == rawOffsets.length) {
+                rawOffsets = Arrays.copyOf(rawOffsets, size << 1);
+                compressedOffsets = Arrays.copyOf(compressedOffsets, size << 1);
+            }
+            rawOffsets[size] = rawSize;
+            compressedOffsets[size++] = compressedSize;
+            rawSize += rawLength;
+            compressedSize += compressedLength;
+        }
+
+        int rawLength(int block) {
+            return (int) ((block + 1 < size ? rawOffsets[block + 1] : rawSize) - rawOffsets[block]);
+        }
+
+        /**
+         * Returns the block holding the given raw offset.
+         */
+        int find(long offset) {
+            int i = Arrays.binarySearch(rawOffsets, 0, size, offset);
+            return i >= 0 ? i : -i - 2;
+        }
+
+        // written after the end block, whose header is where the index starts counting from
+        void write(WritableByteChannel outputChannel) throws IOException {
+            long indexOffset = compressedSize + BLOCK_HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(size * INDEX_ENTRY_SIZE + FOOTER_SIZE);
+            for (int i = 0; i < size; i++) buffer.putLong(rawOffsets[i]).putLong(compressedOffsets[i]);
+            buffer.putLong(rawSize).putLong(indexOffset).putInt(size).putInt(MAGIC);
+            ChannelIO.writeFully(outputChannel, buffer.flip());
+        }
+
+        static Index read(SeekableByteChannel input) throws IOException {
+            long fileSize = input.size();
+            ByteBuffer footer = ByteBuffer.allocate(FOOTER_SIZE);
+            if (fileSize < HEADER_SIZE + BLOCK_HEADER_SIZE + FOOTER_SIZE)
+                throw new IOException("Truncated block container");
+            input.position(fileSize - FOOTER_SIZE);
+            ChannelIO.readFully(input, footer);
+            footer.flip();
+            long rawSize = footer.getLong();
+            long indexOffset = footer.getLong();
+            int count = footer.getInt();
+            if (footer.getInt() != MAGIC || count < 0 || rawSize < 0 || indexOffset < HEADER_SIZE
+                    || indexOffset + (long) count * INDEX_ENTRY_SIZE != fileSize - FOOTER_SIZE)
+                throw new IOException("Corrupt block index");
+            ByteBuffer buffer = ByteBuffer.allocate(count * INDEX_ENTRY_SIZE);
+            input.position(indexOffset);
+            ChannelIO.readFully(input, buffer);
+            buffer.flip();
+            Index index = new Index();
+            index.rawOffsets = new long[Math.max(1, count)];
+            index.compressedOffsets = new long[Math.max(1, count)];
+            for (int i = 0; i < count; i++) {
+                index.rawOffsets[i] = buffer.getLong();
+                index.compressedOffsets[i] = buffer.getLong();
+                if (index.rawOffsets[i] > rawSize || (i > 0 && index.rawOffsets[i] <= index.rawOffsets[i - 1])
+                        || index.compressedOffsets[i] < HEADER_SIZE || index.compressedOffsets[i] >= indexOffset)
+                    throw new IOException("Corrupt block index");
+            }
+            index.size = count;
+            index.rawSize = rawSize;
+            index.compressedSize = indexOffset;
+            return index;
+        }
+    }
+}
@@ -0,0 +1,50 @@
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel reading from or writing into a caller's buffer, so in-memory data goes through the same
+ * code as files and sockets. Writes past the limit of the buffer throw a BufferOverflowException.
+ */
+final class ByteBufferChannel implements ReadableByteChannel, WritableByteChannel {
+    private final ByteBuffer buffer;
+    private boolean open = true;
+
+    ByteBufferChannel(ByteBuffer buffer) {
+        this.buffer = buffer;
+    }
+
+    /**
+     * Returns the remaining bytes as a buffer of their own and consumes them.
+     */
+    ByteBuffer takeRemaining() {
+        ByteBuffer remaining = buffer.slice();
+        buffer.position(buffer.limit());
+        return remaining;
+    }
+
+    @Override
+    public int read(ByteBuffer destination) {
+        if (!buffer.hasRemaining()) return -1;
+        int length = Math.min(buffer.remaining(), destination.remaining());
+        destination.put(destination.position(), buffer, buffer.position(), length);
+        destination.position(destination.position() + length);
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    @Override
+    public int write(ByteBuffer source) {
+        int length = source.remaining();
+        if (length > buffer.remaining()) throw new BufferOverflowException();
+        buffer.put(source);
+        return length;
+    }
+
+    @Override
+    public boolean isOpen() { return open; }
+
+    @Override
+    public void close() { open = false; }
+}
@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Helpers shared by the algorithms: reading and writing whole buffers, naming decompressed files,
+ * and coding blocks on a fork-join pool while keeping their results in input order.
+ */
+public final class ChannelIO {
+
+    private ChannelIO() { }
+
+    //
+    // Public Methods
+    //
+
+    /**
+     * Reads until the buffer is full or the input ends.
+     */
+    static int readFully(ReadableByteChannel channel, ByteBuffer buffer) throws IOException {
+        int total = 0;
+        while (buffer.hasRemaining()) {
+            int read = channel.read(buffer);
+            if (read == -1) break;
+            total += read;
+        }
+        return total;
+    }
+
+    static void writeFully(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) channel.write(buffer);
+    }
+
+    public static String changeExtension(String filePath, String newExtension, boolean addDecompressed) {
+        int i = filePath.lastIndexOf('.');
+        String newFilePath = filePath.substring(0, i);
+        if (addDecompressed)
+            newFilePath = newFilePath + "_decompressed";
+        return newFilePath + newExtension;
+    }
+
+    /**
+     * Reads the input in blocks of blockSize bytes until it ends, codes up to parallelism blocks at
+     * once on a fork-join pool and hands the results to sink in input order.
+     */
+    static <T> void codeBlocks(ReadableByteChannel input, int blockSize, int parallelism,
+                               BlockCoder<T> coder, Sink<T> sink) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            Pipeline<T> pipeline = new Pipeline<>(pool, sink);
+            while (true) {
+                byte[] data = new byte[blockSize];
+                int length = readFully(input, ByteBuffer.wrap(data));
+                if (length == 0) break;
+                pipeline.submit(() -> coder.code(data, length));
+                if (length < blockSize) break;
+            }
+            pipeline.finish();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    //
+    // Pipeline
+    //
+
+    /**
+     * Work run on the pool, failing with the IOException it would throw on the calling thread.
+     */
+    interface Task<T> {
+        T call() throws IOException;
+    }
+
+    interface BlockCoder<T> {
+        T code(byte[] data, int length) throws IOException;
+    }
+
+    interface Sink<T> {
+        void accept(T result) throws IOException;
+    }
+
+    /**
+     * Runs tasks on a fork-join pool and hands their results to a sink in the order the tasks were
+     * submitted. The pool belongs to the caller.
+     */
+    static final class Pipeline<T> {
+        private final ForkJoinPool pool;
+        private final Sink<T> sink;
+        private final Deque<ForkJoinTask<T>> pending = new ArrayDeque<>();
+
+        Pipeline(ForkJoinPool pool, Sink<T> sink) {
+            this.pool = pool;
+            this.sink = sink;
+        }
+
+        void submit(Task<T> task) throws IOException {
+            pending.add(pool.submit(() -> {
+                try {
+                    return task.call();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+            // keep every worker busy while bounding the number of results held in memory
+            if (pending.size() >= 2 * pool.getParallelism()) sink.accept(join(pending.poll()));
+        }
+
+        /**
+         * Waits for the remaining tasks and hands over their results.
+         */
+        void finish() throws IOException {
+            while (!pending.isEmpty()) sink.accept(join(pending.poll()));
+        }
+
+        private static <T> T join(ForkJoinTask<T> task) throws IOException {
+            try {
+                return task.join();
+            } catch (UncheckedIOException e) {
+                throw e.getCause();
+            }
+        }
+    }
+}
@@ -1,19 +1,88 @@
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 
 /**
  * Represents the compression algorithm
  */
 public interface CompressionAlgorithm {
 
+    /**
+     * Compresses everything readable from the input into the output. Neither channel is closed.
+     */
+    void compress(ReadableByteChannel input, WritableByteChannel output) throws IOException;
+
+    /**
+     * Decompresses the input into the output. Neither channel is closed.
+     */
+    void decompress(ReadableByteChannel input, WritableByteChannel output) throws IOException;
+
     /**
      * Compresses a given file and writes the compressed file output.
      */
-    void compress(String filePath) throws IOException;
+    default void compress(String filePath) throws IOException {
+        try (FileChannel input = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(getCompressedPath(filePath)),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            compress(input, output);
+        }
+    }
 
     /**
      * Decompresses a given file and writes the decompressed file output.
      */
-    void decompress(String filePath) throws IOException;
+    default void decompress(String filePath) throws IOException {
+        try (FileChannel input = FileChannel.open(Paths.get(filePath), StandardOpenOption.READ);
+             FileChannel output = FileChannel.open(Paths.get(getDecompressedPath(filePath)),
+                StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            decompress(input, output);
+        }
+    }
+
+    /**
+     * Compresses the input stream until its end into the output stream. Neither stream is closed.
+     */
+    default void compress(InputStream input, OutputStream output) throws IOException {
+        compress(Channels.newChannel(input), Channels.newChannel(output));
+        output.flush();
+    }
+
+    /**
+     * Decompresses the input stream into the output stream. Neither stream is closed.
+     */
+    default void decompress(InputStream input, OutputStream output) throws IOException {
+        decompress(Channels.newChannel(input), Channels.newChannel(output));
+        output.flush();
+    }
+
+    /**
+     * Compresses the remaining bytes of the input into the output buffer, from its position on,
+     * and returns the number of bytes written. Both positions are moved past the bytes used.
+     * Throws a BufferOverflowException if the output doesn't have room for the result.
+     */
+    default int compress(ByteBuffer input, ByteBuffer output) throws IOException {
+        int start = output.position();
+        compress(new ByteBufferChannel(input), new ByteBufferChannel(output));
+        return output.position() - start;
+    }
+
+    /**
+     * Decompresses the remaining bytes of the input into the output buffer, from its position on,
+     * and returns the number of bytes written. Both positions are moved past the bytes used.
+     * Throws a BufferOverflowException if the output doesn't have room for the result.
+     */
+    default int decompress(ByteBuffer input, ByteBuffer output) throws IOException {
+        int start = output.position();
+        decompress(new ByteBufferChannel(input), new ByteBufferChannel(output));
+        return output.position() - start;
+    }
 
     /**
      * Returns the compressed file name
@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Channel passing bytes through to another one and counting them, for the metrics.
+ */
+final class CountingChannel implements ReadableByteChannel, WritableByteChannel {
+    private final ReadableByteChannel input;
+    private final WritableByteChannel output;
+    private long count;
+
+    CountingChannel(ReadableByteChannel input) {
+        this.input = input;
+        this.output = null;
+    }
+
+    CountingChannel(WritableByteChannel output) {
+        this.input = null;
+        this.output = output;
+    }
+
+    long getCount() { return count; }
+
+    @Override
+    public int read(ByteBuffer destination) throws IOException {
+        int read = input.read(destination);
+        if (read > 0) count += read;
+        return read;
+    }
+
+    @Override
+    public int write(ByteBuffer source) throws IOException {
+        int written = output.write(source);
+        count += written;
+        return written;
+    }
+
+    @Override
+    public boolean isOpen() { return input != null ? input.isOpen() : output.isOpen(); }
+
+    @Override
+    public void close() throws IOException {
+        if (input != null) input.close();
+        else output.close();
+    }
+}
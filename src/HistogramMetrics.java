@@ -0,0 +1,118 @@
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Metrics listener keeping a histogram of every figure, per algorithm, direction and phase,
+ * across any number of calls from any number of threads. Values are counted in buckets of
+ * powers of two split in 8, so percentiles are within 12.5% of the real value.
+ */
+public class HistogramMetrics implements MetricsListener {
+    private final Map<String, Histogram> histograms = new ConcurrentSkipListMap<>();
+
+    @Override
+    public void phase(String algorithm, boolean compress, Phase phase, long nanos) {
+        histogram(algorithm, compress, phase.name().toLowerCase() + " ns").record(nanos);
+    }
+
+    @Override
+    public void call(Call call) {
+        histogram(call.algorithm(), call.compress(), "bytes in").record(call.bytesIn());
+        histogram(call.algorithm(), call.compress(), "bytes out").record(call.bytesOut());
+        histogram(call.algorithm(), call.compress(), "symbols").record(call.symbols());
+        histogram(call.algorithm(), call.compress(), "dictionary size").record(call.dictionarySize());
+        histogram(call.algorithm(), call.compress(), "peak table size").record(call.peakTableSize());
+    }
+
+    /**
+     * Returns the histogram of a figure, or null if it was never reported.
+     * The figure is a phase name followed by " ns", or one of the figures of a call
+     * ("bytes in", "bytes out", "symbols", "dictionary size", "peak table size").
+     */
+    public Histogram get(String algorithm, boolean compress, String figure) {
+        return histograms.get(key(algorithm, compress, figure));
+    }
+
+    public void reset() {
+        histograms.clear();
+    }
+
+    /**
+     * Returns a table of the count, mean, median, 99th percentile and maximum of every figure.
+     */
+    public String report() {
+        StringBuilder report = new StringBuilder(String.format("%-48s %8s %14s %14s %14s %14s%n",
+                "figure", "count", "mean", "p50", "p99", "max"));
+        histograms.forEach((key, histogram) -> report.append(String.format("%-48s %8d %14.0f %14d %14d %14d%n",
+                key, histogram.count(), histogram.mean(), histogram.percentile(0.5), histogram.percentile(0.99), histogram.max())));
+        return report.toString();
+    }
+
+    private Histogram histogram(String algorithm, boolean compress, String figure) {
+        return histograms.computeIfAbsent(key(algorithm, compress, figure), k -> new Histogram());
+    }
+
+    private static String key(String algorithm, boolean compress, String figure) {
+        return algorithm + (compress ? " compress " : " decompress ") + figure;
+    }
+
+    /**
+     * Lock-free histogram of non-negative values.
+     */
+    public static final class Histogram {
+        private static final int SUB_BUCKETS = 8;
+        private static final int BUCKETS = 62 * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        void record(long value) {
+            value = Math.max(0, value);
+            counts.incrementAndGet(bucket(value));
+            count.increment();
+            sum.add(value);
+            max.accumulate(value);
+        }
+
+        public long count() { return count.sum(); }
+
+        public long sum() { return sum.sum(); }
+
+        public long max() { return max.get(); }
+
+        public double mean() {
+            long n = count();
+            return n == 0 ? 0 : (double) sum() / n;
+        }
+
+        /**
+         * Returns the lowest value of the bucket holding the given fraction of the values.
+         */
+        public long percentile(double fraction) {
+            long rank = (long) Math.ceil(fraction * count()), seen = 0;
+            for (int i = 0; i < BUCKETS; i++) {
+                seen += counts.get(i);
+                if (seen >= rank && seen > 0) return Math.min(lowerBound(i), max());
+            }
+            return 0;
+        }
+
+        // values below 8 get a bucket each, then every power of two is split in 8
+        private static int bucket(long value) {
+            if (value < SUB_BUCKETS) return (int) value;
+            int exponent = 63 - Long.numberOfLeadingZeros(value);
+            int sub = (int) (value >>> (exponent - 3)) & (SUB_BUCKETS - 1);
+            return (exponent - 2) * SUB_BUCKETS + sub;
+        }
+
+        private static long lowerBound(int bucket) {
+            if (bucket < SUB_BUCKETS) return bucket;
+            int exponent = bucket / SUB_BUCKETS + 2;
+            return (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << (exponent - 3);
+        }
+    }
+}
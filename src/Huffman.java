@@ -1,30 +1,91 @@
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
 
 public class Huffman implements CompressionAlgorithm{
-    Node decompressRoot = null;
-    private class Node{
-        String unit;
-        int freq;
+    public static final int AUTO = 0; // pick the unit size from a sample of each file
+    public static final int MAX_UNIT_SIZE = 8; // a unit is packed into a long
+    public static final int UNLIMITED = 0; // no limit on the code length
+    public static final int MAX_CODE_LENGTH = 64; // a code is stored in a long
+
+    private static final int CHUNK_SIZE = 1 << 16;
+    private static final long COUNT_SPLIT_SIZE = 1 << 24; // bytes counted by one fork-join task
+    private static final int ENCODE_CHUNK_SIZE = 1 << 22; // bytes encoded by one fork-join task
+    private static final int SAMPLE_WINDOWS = 16;
+    private static final int SAMPLE_WINDOW_SIZE = 1 << 16;
+
+    private final int n;
+    private final int parallelism;
+    private final int maxCodeLength;
+    private final MetricsListener metrics;
+
+    private static class Node{
+        int symbol; // -1 for internal nodes
+        long freq;
         Node left;
         Node right;
-        private Node(String unit, int freq, Node left, Node right){
-            this.unit = unit;
+        private Node(int symbol, long freq, Node left, Node right){
+            this.symbol = symbol;
             this.freq = freq;
             this.left = left;
             this.right = right;
         }
     }
 
+    public Huffman(){
+        this(1);
+    }
+
+    // n is the number of bytes coded as one unit, from 1 to MAX_UNIT_SIZE, or AUTO
+    public Huffman(int n){
+        this(n, 1);
+    }
+
+    // parallelism is the number of threads counting and encoding parts of the file at the same time
+    public Huffman(int n, int parallelism){
+        this(n, parallelism, UNLIMITED);
+    }
+
+    // maxCodeLength caps the length of the codes, so the decoder tables stay small
+    // it is raised when there are too many units to give each one a code that short
+    public Huffman(int n, int parallelism, int maxCodeLength){
+        this(n, parallelism, maxCodeLength, MetricsListener.NONE);
+    }
+
+    // metrics receives the time of each phase and the figures of each call
+    public Huffman(int n, int parallelism, int maxCodeLength, MetricsListener metrics){
+        if(n < AUTO || n > MAX_UNIT_SIZE)
+            throw new IllegalArgumentException("Unit size must be between 1 and " + MAX_UNIT_SIZE + " or AUTO");
+        if(parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        if(maxCodeLength < UNLIMITED || maxCodeLength > MAX_CODE_LENGTH)
+            throw new IllegalArgumentException("Maximum code length must be between 1 and " + MAX_CODE_LENGTH + " or UNLIMITED");
+        this.n = n;
+        this.parallelism = parallelism;
+        this.maxCodeLength = maxCodeLength;
+        this.metrics = metrics;
+    }
+
     ///////////////////////////////////  COMPRESSION //////////////////////////////////////////////////////////
     @Override
-    public void compress(String path) {
-        compress(path, 1);
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        // both passes scan the same memory mapping of the file, other inputs are read into memory first
+        // or, from 1 GB on, into a temporary file that is mapped the same way
+        long time = startTime();
+        try(MappedInput input = MappedInput.of(inputChannel)){
+            time = endPhase(true, MetricsListener.Phase.READ, time);
+            compress(input, outputChannel, time);
+        }
     }
 
     public String getCompressedPath(String path) {
-        return getCompressedPath(path, 1);
+        return getCompressedPath(path, n);
     }
 
     public String getCompressedPath(String inputPath, int n){
@@ -32,7 +93,7 @@ public class Huffman implements CompressionAlgorithm{
         String newPath = "";
         String[] pathComponents = inputPath.split("/");
         String inputFileName = pathComponents[pathComponents.length-1];
-        String outputFileName = String.valueOf(n) + "." + inputFileName + ".hc";
+        String outputFileName = (n == AUTO ? "auto" : String.valueOf(n)) + "." + inputFileName + ".hc";
         for(int i=0; i<pathComponents.length-1; i++)
             newPath += pathComponents[i] + "/";
         newPath += outputFileName;
@@ -49,61 +110,238 @@ public class Huffman implements CompressionAlgorithm{
         newPath += outputFileName;
         return newPath;
     }
-    private void compress(String path, int n){
-        int[] numUnits = {0}; // number of units processed
-        int[] sizeLast = {Integer.MAX_VALUE}; // size of the last byte, which is less than n if file size is not divisible by n
-        HashMap<String, Integer> freqTable = generateFreqTable(path, n, numUnits, sizeLast);
-        Node[]nodes = generateNodes(freqTable);
-        Node root = generateTree(nodes);
-        HashMap<String, String> codes = new HashMap<>();
-        generateCode(codes, root, "");
-        writeCompressed(codes, path, root, n, numUnits, sizeLast);
-    }
-
-    // create a frequency table of all the units in the file
-    private HashMap<String, Integer> generateFreqTable(String path, int n, int[] numUnits, int[] sizeLast){
-        HashMap<String, Integer> freqTable = new HashMap<>();
-        // read file byte by byte and count the chunks
-        try(BufferedInputStream bis = new BufferedInputStream(new FileInputStream(path))){
-            int br;
-            while((br = bis.read()) != -1){
-                StringBuilder unit = new StringBuilder();
-                unit.append((char)br);
-                int currSize;
-                for(currSize=0; currSize < n-1 && ((br = bis.read()) != -1); currSize++)
-                    unit.append((char) br);
-
-                numUnits[0]++;
-                if(sizeLast[0] > currSize) sizeLast[0] = currSize+1;
-
-                // check if exists in table, if not then create new entry and put one
-                // else increment the frequency
-                String unitString = unit.toString();
-                if(freqTable.containsKey(unitString)){
-                    freqTable.put(unitString, freqTable.get(unitString)+1);
+    private void compress(MappedInput input, WritableByteChannel outputChannel, long time) throws IOException{
+        int unitSize = n == AUTO ? chooseUnitSize(input) : n;
+        long numUnits = input.size() / unitSize; // number of complete units
+        String tail = getTail(input, unitSize); // trailing bytes when the file size is not divisible by n
+        ForkJoinPool pool = parallelism > 1 ? new ForkJoinPool(parallelism) : null;
+        try{
+            LongLongHashMap freqTable = generateFreqTable(input, unitSize, numUnits, pool);
+            time = endPhase(true, MetricsListener.Phase.COUNT, time);
+            // symbols are the byte values when n = 1, otherwise the indices of the units in sorted order
+            long[] units = getUnits(freqTable, unitSize);
+            int[] lengths = generateCodeLengths(freqTable, units, maxCodeLength);
+            long[] codes = generateCanonicalCodes(lengths);
+            time = endPhase(true, MetricsListener.Phase.BUILD, time);
+            long written = writeCompressed(codes, lengths, units, input, outputChannel, unitSize, numUnits, tail, pool);
+            endPhase(true, MetricsListener.Phase.ENCODE, time);
+            if(metrics != MetricsListener.NONE)
+                metrics.call(new MetricsListener.Call("Huffman", true, input.size(), written, numUnits, units.length, freqTable.capacity()));
+        } finally {
+            if(pool != null) pool.shutdown();
+        }
+    }
+
+    // try every unit size on a sample spread over the file and keep the one with the smallest estimated output
+    private int chooseUnitSize(MappedInput input){
+        long fileSize = input.size();
+        int windows = (int) Math.min(SAMPLE_WINDOWS, Math.max(1, fileSize / SAMPLE_WINDOW_SIZE));
+        int windowSize = (int) Math.min(SAMPLE_WINDOW_SIZE, fileSize);
+        byte[] sample = new byte[windows * windowSize];
+        for(int i=0; i<windows; i++)
+            input.read((fileSize - windowSize) / windows * i, sample, i * windowSize, windowSize);
+        if(sample.length == 0) return 1;
+
+        int best = 1;
+        double bestSize = Double.MAX_VALUE;
+        for(int unitSize=1; unitSize<=MAX_UNIT_SIZE; unitSize++){
+            LongLongHashMap freqTable = new LongLongHashMap();
+            for(int i=0; i + unitSize <= sample.length; i += unitSize)
+                freqTable.increment(packUnit(sample, i, unitSize));
+            long[] units = getUnits(freqTable, unitSize);
+            int[] lengths = generateCodeLengths(freqTable, units, maxCodeLength);
+            double bits = 0;
+            for(int symbol=0; symbol<units.length; symbol++)
+                bits += (double) lengths[symbol] * freqTable.get(units[symbol], 0);
+            // the codes grow with the file, the code length table doesn't
+            double size = bits / 8 * fileSize / sample.length + freqTable.size() * (unitSize + 1);
+            if(size < bestSize){
+                bestSize = size;
+                best = unitSize;
+            }
+        }
+        return best;
+    }
+
+    private static long packUnit(byte[] data, int offset, int unitSize){
+        long unit = 0;
+        for(int i=0; i<unitSize; i++) unit = (unit << 8) | (data[offset + i] & 0xFF);
+        return unit;
+    }
+
+    // a short unit can only be the end of the file, it's stored as is
+    private String getTail(MappedInput input, int n){
+        int size = (int) (input.size() % n);
+        byte[] tail = new byte[size];
+        input.read(input.size() - size, tail, 0, size);
+        return new String(tail, StandardCharsets.ISO_8859_1);
+    }
+
+    // create a frequency table of all the complete units in the file
+    // with a pool the file is split in ranges counted in parallel and their tables are added together
+    private LongLongHashMap generateFreqTable(MappedInput input, int n, long numUnits, ForkJoinPool pool){
+        long end = numUnits * n;
+        if(pool == null) return countRange(input, 0, end, n);
+        return pool.invoke(new CountTask(input, 0, end, n));
+    }
+
+    @SuppressWarnings("serial") // tasks are never serialized
+    private static class CountTask extends RecursiveTask<LongLongHashMap>{
+        private final MappedInput input;
+        private final long start, end;
+        private final int n;
+
+        private CountTask(MappedInput input, long start, long end, int n){
+            this.input = input;
+            this.start = start;
+            this.end = end;
+            this.n = n;
+        }
+
+        @Override
+        protected LongLongHashMap compute(){
+            if(end - start <= COUNT_SPLIT_SIZE) return countRange(input, start, end, n);
+            long middle = start + (end - start) / 2 / n * n; // split on a unit boundary
+            CountTask left = new CountTask(input, start, middle, n);
+            left.fork();
+            LongLongHashMap right = new CountTask(input, middle, end, n).compute();
+            LongLongHashMap counts = left.join();
+            if(counts.size() < right.size()){
+                right.addAll(counts);
+                return right;
+            }
+            counts.addAll(right);
+            return counts;
+        }
+    }
+
+    // count the units of the file in [start, end), each packed into a long
+    private static LongLongHashMap countRange(MappedInput input, long start, long end, int n){
+        LongLongHashMap freqTable = new LongLongHashMap(n == 1 ? 256 : 1 << 12);
+        byte[] chunk = new byte[CHUNK_SIZE - CHUNK_SIZE % n];
+        long[] counts = new long[256]; // single bytes are counted in a plain array
+        for(long position = start; position < end; position += chunk.length){
+            int length = (int) Math.min(chunk.length, end - position);
+            input.read(position, chunk, 0, length);
+            if(n == 1){
+                for(int i=0; i<length; i++) counts[chunk[i] & 0xFF]++;
+            } else {
+                for(int i=0; i<length; i+=n) freqTable.increment(packUnit(chunk, i, n));
+            }
+        }
+        if(n == 1)
+            for(int b=0; b<256; b++) if(counts[b] != 0) freqTable.put(b, counts[b]);
+        return freqTable;
+    }
+
+    // list the unit of each symbol
+    private static long[] getUnits(LongLongHashMap freqTable, int n){
+        if(n == 1){
+            long[] units = new long[256];
+            for(int i=0; i<256; i++) units[i] = i;
+            return units;
+        }
+        long[] units = freqTable.keys();
+        Arrays.sort(units);
+        return units;
+    }
+
+    // code lengths of the symbols 0 to frequencies.length - 1, for the coders that reuse the
+    // Huffman codes on an alphabet of their own, symbols that never occur get no code
+    static int[] generateCodeLengths(long[] frequencies, int maxLength){
+        LongLongHashMap freqTable = new LongLongHashMap(frequencies.length);
+        long[] units = new long[frequencies.length];
+        for(int symbol=0; symbol<frequencies.length; symbol++){
+            units[symbol] = symbol;
+            if(frequencies[symbol] != 0) freqTable.put(symbol, frequencies[symbol]);
+        }
+        return generateCodeLengths(freqTable, units, maxLength);
+    }
+
+    // build the Huffman tree of the units and get the code length of each symbol
+    // if a code is longer than maxLength the lengths are computed again with package-merge
+    private static int[] generateCodeLengths(LongLongHashMap freqTable, long[] units, int maxLength){
+        Node root = generateTree(generateNodes(freqTable, units));
+        int[] lengths = new int[units.length];
+        generateCodeLengths(lengths, root, 0);
+        if(maxLength == UNLIMITED) return lengths;
+        for(int length : lengths)
+            if(length > maxLength) return generateLimitedCodeLengths(freqTable, units, maxLength);
+        return lengths;
+    }
+
+    // package-merge: the optimal code lengths with no code longer than maxLength
+    // level 1 is the list of units sorted by frequency, every next level merges the units with
+    // the pairs (packages) of the previous level, each unit gets one bit per level it's picked in
+    // from the first 2 * (units - 1) items of the last level
+    private static int[] generateLimitedCodeLengths(LongLongHashMap freqTable, long[] units, int maxLength){
+        int count = freqTable.size();
+        maxLength = Math.max(maxLength, 64 - Long.numberOfLeadingZeros(count - 1)); // enough codes for every unit
+        long[] sorted = new long[count]; // frequency << 32 | symbol
+        // frequencies are scaled down to 31 bits to fit, the lengths barely change
+        long maxFreq = 0;
+        for(long unit : units) maxFreq = Math.max(maxFreq, freqTable.get(unit, 0));
+        int shift = Math.max(0, 33 - Long.numberOfLeadingZeros(maxFreq));
+        int index = 0;
+        for(int symbol=0; symbol<units.length; symbol++){
+            long freq = freqTable.get(units[symbol], 0);
+            if(freq != 0) sorted[index++] = Math.max(1, freq >>> shift) << 32 | symbol;
+        }
+        Arrays.sort(sorted);
+
+        boolean[][] isUnit = new boolean[maxLength][];
+        long[] level = new long[count];
+        for(int i=0; i<count; i++) level[i] = sorted[i] >>> 32;
+        isUnit[0] = new boolean[count];
+        Arrays.fill(isUnit[0], true);
+        for(int depth=1; depth<maxLength; depth++){
+            int packages = level.length / 2;
+            long[] next = new long[count + packages];
+            isUnit[depth] = new boolean[next.length];
+            int unit = 0, pack = 0;
+            for(int i=0; i<next.length; i++){
+                long packWeight = pack < packages ? level[2*pack] + level[2*pack + 1] : Long.MAX_VALUE;
+                if(unit < count && (sorted[unit] >>> 32) <= packWeight){
+                    next[i] = sorted[unit++] >>> 32;
+                    isUnit[depth][i] = true;
                 } else {
-                    freqTable.put(unitString, 1);
+                    next[i] = packWeight;
+                    pack++;
                 }
             }
-        } catch (Exception e) {
-            e.printStackTrace();
+            level = next;
         }
-        return freqTable;
+
+        int[] lengths = new int[units.length];
+        int picked = 2 * (count - 1);
+        for(int depth=maxLength-1; depth>=0 && picked > 0; depth--){
+            int unitsPicked = 0;
+            for(int i=0; i<picked; i++) if(isUnit[depth][i]) unitsPicked++;
+            // the units come in frequency order so the picked ones are the first ones
+            for(int i=0; i<unitsPicked; i++) lengths[(int) sorted[i]]++;
+            picked = 2 * (picked - unitsPicked);
+        }
+        return lengths;
     }
 
     // create an array of nodes using the frequency table
-    private Node[] generateNodes(HashMap<String, Integer> freqTable){
+    private static Node[] generateNodes(LongLongHashMap freqTable, long[] units){
         Node[] nodes = new Node[freqTable.size()];
         int index = 0;
-        for(String unit : freqTable.keySet())
-            nodes[index++] = new Node(unit, freqTable.get(unit), null, null);
+        for(int symbol=0; symbol<units.length; symbol++){
+            long freq = freqTable.get(units[symbol], 0);
+            if(freq != 0) nodes[index++] = new Node(symbol, freq, null, null);
+        }
         return nodes;
     }
 
     // create the binary tree using the nodes carrying the units and their frequencies
-    private Node generateTree(Node[] nodes){
+    private static Node generateTree(Node[] nodes){
+        if(nodes.length == 0) return null;
+        // a single unit still needs a one bit code
+        if(nodes.length == 1) return new Node(-1, nodes[0].freq, nodes[0], null);
         Node node1, node2, tempNode, root = null;
-        PriorityQueue<Node> pq = new PriorityQueue<>(Comparator.comparingInt(node -> node.freq));
+        PriorityQueue<Node> pq = new PriorityQueue<>(Comparator.comparingLong(node -> node.freq));
         // fill the queue
         Collections.addAll(pq, nodes);
 
@@ -111,8 +349,7 @@ public class Huffman implements CompressionAlgorithm{
             node1 = pq.poll();
             node2 = pq.poll();
 
-            tempNode = new Node("", node1.freq, node1, node2);
-            if(node2 != null) tempNode.freq += node2.freq;
+            tempNode = new Node(-1, node1.freq + node2.freq, node1, node2);
 
             pq.add(tempNode);
             root = tempNode;
@@ -120,226 +357,311 @@ public class Huffman implements CompressionAlgorithm{
         return root;
     }
 
-    // traverse inorder to generate the code
-    private void generateCode(HashMap<String, String> codes, Node node, String code){
+    // the depth of each leaf is the code length of its symbol
+    private static void generateCodeLengths(int[] lengths, Node node, int depth){
         if(node == null) return;
-        generateCode(codes, node.left,code + "0");
-        if(node.unit.length() != 0) codes.put(node.unit, code);
-        generateCode(codes, node.right, code + "1");
+        if(node.symbol != -1){
+            lengths[node.symbol] = depth;
+            return;
+        }
+        generateCodeLengths(lengths, node.left, depth + 1);
+        generateCodeLengths(lengths, node.right, depth + 1);
     }
 
-    private String getFirstLine(int n, int[] numUnits, int[] sizeLast){
+    // assign consecutive codes to the symbols ordered by (code length, symbol)
+    // so that the code lengths alone are enough to rebuild them
+    static long[] generateCanonicalCodes(int[] lengths){
+        int maxLength = 0;
+        for(int length : lengths) maxLength = Math.max(maxLength, length);
+        int[] lengthCount = new int[maxLength + 1];
+        for(int length : lengths) lengthCount[length]++;
+        lengthCount[0] = 0;
+
+        long[] nextCode = new long[maxLength + 1];
+        long code = 0;
+        for(int length=1; length<=maxLength; length++){
+            code = (code + lengthCount[length-1]) << 1;
+            nextCode[length] = code;
+        }
+        long[] codes = new long[lengths.length];
+        for(int symbol=0; symbol<lengths.length; symbol++)
+            if(lengths[symbol] != 0) codes[symbol] = nextCode[lengths[symbol]]++;
+        return codes;
+    }
+
+    private String getFirstLine(int n, long numUnits, String tail){
         String line = "";
-        line += String.valueOf(n) + '-' + numUnits[0] + '-' + sizeLast[0] + '\n';
+        line += String.valueOf(n) + '-' + numUnits + '-' + tail.length() + '\n';
         return line;
     }
 
-    private String getBfsTree(Node root, int n){
-        StringBuilder tree = new StringBuilder();
-        Queue<Node> nodes = new LinkedList<>();
-        nodes.add(root);
-        while(!nodes.isEmpty()){
-            Node node = nodes.poll();
-            String nodeUnit = node.unit;
-            // not leaf node
-            if(nodeUnit.length() == 0){
-                tree.append('0');
-
-            } else {
-                //leaf node
-                // write the size
-                // then write the content
-
-                if(nodeUnit.length() == n) tree.append('1').append(nodeUnit);
-                    // maybe because of this we'll need to add its size just to avoid overshooting
-                    // when trying to read the tree?
-                else tree.append('2').append(nodeUnit);
-            }
-            if(node.left != null) nodes.add(node.left);
-            if(node.right != null) nodes.add(node.right);
+    // the number of units that have a code followed by each of these units and its code length
+    private void writeCodeLengths(BitWriter bw, int[] lengths, long[] units, int n) throws IOException{
+        int count = 0;
+        for(int length : lengths) if(length != 0) count++;
+        bw.write(count, 32);
+        for(int symbol=0; symbol<units.length; symbol++){
+            if(lengths[symbol] == 0) continue;
+            bw.write(units[symbol], 8 * n);
+            bw.write(lengths[symbol], 8);
         }
-        tree.append('#');
-        return tree.toString();
-    }
-
-    private void writeCompressed(HashMap<String, String> codes, String path, Node root, int n, int[] numUnits, int[] sizeLast){
-        // first write your tree : c
-        // // write n first to know how many bytes to read
-        // // write the last size of the last one
-        // second read byte by byte : d
-        try(BufferedInputStream bis = new BufferedInputStream(new FileInputStream(path))) {
-            try(BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(getCompressedPath(path, n)))) {
-
-                // deal with writing the tree
-                // write the meta data
-                // n - number of units - size of last byte
-                //
-                String line = getFirstLine(n, numUnits, sizeLast);
-                String tree = getBfsTree(root, n);
-                bos.write(line.getBytes(StandardCharsets.ISO_8859_1));
-                bos.write(tree.getBytes(StandardCharsets.ISO_8859_1));
-                //reading the file and writing in the compressed
-                int bytePtr = 0;
-
-                int[] bs = {0, 0, 0, 0, 0, 0, 0, 0};
-                int br;
-                while ((br = bis.read()) != -1) {
-                    int counter = 0;
-                    StringBuilder unit = new StringBuilder();
-                    // find unit
-                    unit.append((char)br);
-                    while (counter++ < n-1 && (br = bis.read()) != -1)
-                        unit.append((char) br);
-                    // create bitset and store its value in it
-                    String code = codes.get(unit.toString());
-                    int codePtr = 0;
-                    while(codePtr < code.length()){
-                        for(; bytePtr < 8 ; bytePtr++){
-                            if(codePtr >= code.length()) break;
-
-                            if(code.charAt(codePtr++) == '1'){
-                                bs[bytePtr] = 1;
-                            }
-                        }
-                        // it is full
-                        if(bytePtr == 8) {
-                            bytePtr = 0;
-                            bos.write(encodeToByte(bs));
-                            bs = new int[] {0, 0, 0, 0, 0, 0, 0, 0};
-                        }
-                    }
-                    // then convert to byte array and write in file
-                }
-                if(bytePtr != 0) bos.write(encodeToByte(bs));
-            }
-        } catch (Exception e) {
-            e.printStackTrace();
-        }
-        // // every time there's a hit we'll write to the file
-        // convert each n bytes into their code and write in compressed file : d-c (A lot of work)
     }
 
-    private byte encodeToByte(int[] bits) {
-        byte result = 0;
-        int byteValue = 0;
-        int index;
-        for (index = 0; index < bits.length; index++) {
-            byteValue = (byteValue << 1) | bits[index];
-            result = (byte) byteValue;
+    private void writeString(BitWriter bw, String s) throws IOException{
+        for(int i=0; i<s.length(); i++) bw.write(s.charAt(i), 8);
+    }
+
+    // returns the number of bytes written
+    private long writeCompressed(long[] codes, int[] lengths, long[] units, MappedInput input, WritableByteChannel outputChannel, int n, long numUnits, String tail, ForkJoinPool pool) throws IOException{
+        // first write the meta data
+        // // n - number of units - size of the tail, then the tail itself
+        // // the code length of each unit
+        // second read unit by unit and append its code
+        LongLongHashMap symbols = new LongLongHashMap(units.length);
+        if(n != 1)
+            for(int symbol=0; symbol<units.length; symbol++) symbols.put(units[symbol], symbol);
+
+        // the bit writer is only flushed, the channel belongs to the caller
+        BitWriter bw = new BitWriter(outputChannel);
+        writeString(bw, getFirstLine(n, numUnits, tail));
+        writeString(bw, tail);
+        writeCodeLengths(bw, lengths, units, n);
+
+        //reading the file and writing in the compressed
+        long end = numUnits * n; // the tail is already written
+        if(pool == null){
+            encodeRange(input, 0, end, n, codes, lengths, symbols, bw);
+            bw.flush();
+            return bw.getBitsWritten() >>> 3;
         }
-        if (index % 8 != 0) {
-            result = (byte) ((byte) byteValue << (8 - (index % 8)));
+        // with a pool, parts of the file are encoded in parallel each into its own bit buffer
+        // then appended in order, each one starting right after the last bit of the previous one
+        long chunkSize = ENCODE_CHUNK_SIZE - ENCODE_CHUNK_SIZE % n;
+        ChannelIO.Pipeline<EncodedChunk> pipeline = new ChannelIO.Pipeline<>(pool, encoded -> bw.write(encoded.data(), encoded.bitCount()));
+        for(long start=0; start<end; start+=chunkSize){
+            long chunkStart = start, chunkEnd = Math.min(end, start + chunkSize);
+            pipeline.submit(() -> encodeChunk(input, chunkStart, chunkEnd, n, codes, lengths, symbols));
         }
-        return result;
+        pipeline.finish();
+        bw.flush();
+        return bw.getBitsWritten() >>> 3;
     }
 
-    ///////////////////////////////////  DECOMPRESSION //////////////////////////////////////////////////////////
+    // the start of the first phase, not taken without a listener
+    private long startTime(){
+        return metrics == MetricsListener.NONE ? 0 : System.nanoTime();
+    }
 
-    private void insertNode(Queue<Node> q, String unit){
-        Node node = new Node(unit, 0, null, null);
-        if(decompressRoot == null){
-            decompressRoot = node;
-        }
-        else if(q.peek().left == null){
-            q.peek().left = node;
-        }else{
-            // if we filled the right this means that we no longer have to add anything so we can remove it
-            q.peek().right = node;
-            q.remove();
+    // reports the phase that started at the given time and returns the start of the next one
+    private long endPhase(boolean compress, MetricsListener.Phase phase, long start){
+        if(metrics == MetricsListener.NONE) return 0;
+        long now = System.nanoTime();
+        metrics.phase("Huffman", compress, phase, now - start);
+        return now;
+    }
+
+    private record EncodedChunk(byte[] data, long bitCount){ }
+
+    private static EncodedChunk encodeChunk(MappedInput input, long start, long end, int n, long[] codes, int[] lengths, LongLongHashMap symbols) throws IOException{
+        ByteArrayOutputStream encoded = new ByteArrayOutputStream((int) ((end - start) / 2));
+        BitWriter bw = new BitWriter(Channels.newChannel(encoded));
+        encodeRange(input, start, end, n, codes, lengths, symbols, bw);
+        long bitCount = bw.getBitsWritten();
+        bw.flush();
+        return new EncodedChunk(encoded.toByteArray(), bitCount);
+    }
+
+    // append the codes of the units of the file in [start, end)
+    private static void encodeRange(MappedInput input, long start, long end, int n, long[] codes, int[] lengths, LongLongHashMap symbols, BitWriter bw) throws IOException{
+        byte[] chunk = new byte[CHUNK_SIZE - CHUNK_SIZE % n];
+        for(long position = start; position < end; position += chunk.length){
+            int length = (int) Math.min(chunk.length, end - position);
+            input.read(position, chunk, 0, length);
+            if(n == 1){
+                for(int i=0; i<length; i++){
+                    int symbol = chunk[i] & 0xFF;
+                    bw.write(codes[symbol], lengths[symbol]);
+                }
+            } else {
+                for(int i=0; i<length; i+=n){
+                    int symbol = (int) symbols.get(packUnit(chunk, i, n), -1);
+                    bw.write(codes[symbol], lengths[symbol]);
+                }
+            }
         }
-        if(node.unit.length() == 0) q.add(node);
+    }
 
+    ///////////////////////////////////  DECOMPRESSION //////////////////////////////////////////////////////////
+
+    private long readNumber(BitReader br, char end) throws IOException{
+        StringBuilder numHolder = new StringBuilder();
+        int readByte;
+        while((readByte = br.read(8)) != end) numHolder.append((char) readByte);
+        return Long.parseLong(numHolder.toString());
     }
-    private void generateCodeReversed(HashMap<String,String> codes, Node node, String code){
-        if(node == null) return;
-        generateCodeReversed(codes, node.left,code + "0");
-        if(node.unit.length() != 0) codes.put(code, node.unit);
-        generateCodeReversed(codes, node.right, code + "1");
+
+    private String readString(BitReader br, int length) throws IOException{
+        StringBuilder s = new StringBuilder();
+        for(int i=0; i<length; i++) s.append((char) br.read(8));
+        return s.toString();
     }
+
     @Override
-    public void decompress(String path){
-        StringBuilder numHolder = new StringBuilder();
-        int n, numUnits, sizeLast;
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException{
+        int n, tailSize;
+        long numUnits;
         // read n till -
-        // read number till -
-        // read remaining number till \n
-        try(BufferedInputStream bis = new BufferedInputStream(new FileInputStream(path))){
-
-            int readByte;
-            // read n
-            while((readByte = bis.read()) != -1){
-                if((char)readByte == '-') break;
-                numHolder.append((char)readByte);
+        // read number of units till -
+        // read the size of the tail till \n
+        long time = startTime();
+        CountingChannel counted = null;
+        if(metrics != MetricsListener.NONE) inputChannel = counted = new CountingChannel(inputChannel);
+        BitReader br = new BitReader(inputChannel);
+        n = (int) readNumber(br, '-');
+        numUnits = readNumber(br, '-');
+        tailSize = (int) readNumber(br, '\n');
+        String tail = readString(br, tailSize);
+
+        // now read the code lengths
+        // with n = 1 the symbols are the byte values, otherwise the units in the order they were written
+        int count = br.read(32);
+        long[] units = n == 1 ? getUnits(null, 1) : new long[count];
+        int[] lengths = new int[units.length];
+        for(int i=0; i<count; i++){
+            long unit = n > 4 ? (long) br.read(8 * (n - 4)) << 32 | (br.read(32) & 0xFFFFFFFFL) : br.read(8 * n);
+            int symbol = n == 1 ? (int) unit : i;
+            units[symbol] = unit;
+            lengths[symbol] = br.read(8);
+        }
+        CanonicalDecoder decoder = new CanonicalDecoder(lengths);
+
+        // now to read the codes and write the corresponding units
+        byte[] unitBytes = new byte[units.length * n];
+        for(int symbol=0; symbol<units.length; symbol++)
+            for(int i=0; i<n; i++) unitBytes[symbol * n + i] = (byte) (units[symbol] >>> (8 * (n - 1 - i)));
+        time = endPhase(false, MetricsListener.Phase.BUILD, time);
+        ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+        byte[] output = buffer.array();
+        int position = 0;
+        for(long i=0; i<numUnits; i++){
+            if(position + n > output.length){
+                ChannelIO.writeFully(outputChannel, buffer.position(0).limit(position));
+                position = 0;
+            }
+            int symbol = decoder.decode(br);
+            if(n == 1) output[position] = unitBytes[symbol];
+            else System.arraycopy(unitBytes, symbol * n, output, position, n);
+            position += n;
+        }
+        ChannelIO.writeFully(outputChannel, buffer.position(0).limit(position));
+        ChannelIO.writeFully(outputChannel, ByteBuffer.wrap(tail.getBytes(StandardCharsets.ISO_8859_1)));
+        endPhase(false, MetricsListener.Phase.DECODE, time);
+        if(metrics != MetricsListener.NONE)
+            metrics.call(new MetricsListener.Call("Huffman", false, counted.getCount(), numUnits * n + tailSize,
+                numUnits, units.length, decoder.tableSize()));
+    }
+
+    // decodes canonical codes with a lookup table: the next PRIMARY_BITS bits give the unit and its
+    // code length at once, longer codes go through a second table picked by the first lookup
+    // codes too long for the second table are decoded one bit at a time using the number of codes of each length
+    static class CanonicalDecoder{
+        private static final int PRIMARY_BITS = 11;
+        private static final int MAX_SINGLE_TABLE_BITS = 12; // 16 KB, codes this short get a single lookup
+        private static final int MAX_SECONDARY_BITS = 12;
+        private static final int LINK = 1 << 6; // entry points to a second table
+        private static final int SLOW = -1; // entry needs the bit by bit decoding
+
+        private final int[] lengthCount;
+        private final int[] sortedSymbols; // ordered by (code length, symbol)
+        private final int primaryBits;
+        // each entry is (symbol << 7 | code length) or (second table offset << 7 | LINK | second table bits)
+        private int[] table;
+
+        CanonicalDecoder(int[] lengths){
+            int maxLength = 0;
+            for(int length : lengths) maxLength = Math.max(maxLength, length);
+            lengthCount = new int[maxLength + 1];
+            for(int length : lengths) lengthCount[length]++;
+            lengthCount[0] = 0;
+
+            int[] offset = new int[maxLength + 2];
+            for(int length=1; length<=maxLength; length++) offset[length+1] = offset[length] + lengthCount[length];
+            sortedSymbols = new int[offset[maxLength+1]];
+            for(int symbol=0; symbol<lengths.length; symbol++)
+                if(lengths[symbol] != 0) sortedSymbols[offset[lengths[symbol]]++] = symbol;
+
+            primaryBits = Math.max(1, maxLength <= MAX_SINGLE_TABLE_BITS ? maxLength : PRIMARY_BITS);
+            generateTable(lengths, generateCanonicalCodes(lengths));
+        }
+
+        private void generateTable(int[] lengths, long[] codes){
+            int size = 1 << primaryBits;
+            table = new int[size];
+            Arrays.fill(table, SLOW);
+            if(lengths.length >= (1 << 24)) return; // symbols don't fit in an entry
+
+            // short codes fill every entry that starts with them
+            // for long codes find the longest code behind each first PRIMARY_BITS bits
+            int[] secondaryBits = new int[size];
+            for(int symbol=0; symbol<lengths.length; symbol++){
+                int length = lengths[symbol];
+                if(length == 0) continue;
+                if(length <= primaryBits){
+                    int first = (int)(codes[symbol] << (primaryBits - length));
+                    Arrays.fill(table, first, first + (1 << (primaryBits - length)), symbol << 7 | length);
+                } else {
+                    int prefix = (int)(codes[symbol] >>> (length - primaryBits));
+                    secondaryBits[prefix] = Math.max(secondaryBits[prefix], length - primaryBits);
+                }
             }
-            n = Integer.parseInt(numHolder.toString());
-            numHolder = new StringBuilder();
-            while((readByte = bis.read()) != -1){
-                if((char)readByte == '-') break;
-                numHolder.append((char)readByte);
+            for(int prefix=0; prefix<(1 << primaryBits); prefix++){
+                int bits = secondaryBits[prefix];
+                if(bits == 0 || bits > MAX_SECONDARY_BITS) continue;
+                table[prefix] = size << 7 | LINK | bits;
+                size += 1 << bits;
             }
-            numUnits = Integer.parseInt(numHolder.toString());
-            numHolder = new StringBuilder();
-            while((readByte = bis.read()) != -1){
-                if((char)readByte == '\n') break;
-                numHolder.append((char)readByte);
+            table = Arrays.copyOf(table, size);
+            for(int symbol=0; symbol<lengths.length; symbol++){
+                int length = lengths[symbol];
+                if(length <= primaryBits) continue;
+                int entry = table[(int)(codes[symbol] >>> (length - primaryBits))];
+                if(entry == SLOW) continue;
+                int bits = entry & (LINK - 1);
+                int rest = length - primaryBits;
+                int first = (entry >>> 7) + ((int)(codes[symbol] & ((1L << rest) - 1)) << (bits - rest));
+                Arrays.fill(table, first, first + (1 << (bits - rest)), symbol << 7 | rest);
             }
-            sizeLast = Integer.parseInt(numHolder.toString());
-            // now read the tree
-            Queue<Node> q = new LinkedList<>();
-            // read
-            // if 0 then enter non leaf node
-            // if 1 then read n unit
-            // if 2 then read sizeLast chunk
-            // if # then END
-            while(true){
-                readByte = (char)bis.read();
-                if(readByte == '#') break;
-                else if(readByte == '0'){ // non leaf node
-                    insertNode(q, "");
-                }else if(readByte == '1'){
-                    StringBuilder complete = new StringBuilder();
-                    for(int i=0; i<n; i++) complete.append((char) bis.read());
-                    insertNode(q, complete.toString());
-                }else if(readByte == '2'){
-                    StringBuilder incomplete = new StringBuilder();
-                    for(int i=0; i<sizeLast; i++) incomplete.append((char) bis.read());
-                    insertNode(q, incomplete.toString());
-                }
+        }
+
+        private int tableSize(){
+            return table.length;
+        }
+
+        int decode(BitReader br) throws IOException{
+            int entry = table[br.peek(primaryBits)];
+            if(entry == SLOW) return decodeSlow(br);
+            if((entry & LINK) == 0){
+                br.skip(entry & (LINK - 1));
+                return entry >>> 7;
             }
-            HashMap<String, String> codeToString = new HashMap<>();
-            generateCodeReversed(codeToString, decompressRoot, "");
-
-            // now to read the contents of the file and write the corresponding words
-            try(BufferedOutputStream bos = new BufferedOutputStream(new FileOutputStream(getDecompressedPath(path)))){
-                String compared = "";
-                int br;
-                while((br = bis.read()) != -1){
-                    String temp = Integer.toBinaryString((char)br);
-                    StringBuilder symbol = new StringBuilder();
-                    symbol.append("0".repeat(Math.max(0, 8 - temp.length())));
-                    symbol.append(temp);
-                    for(int i=0; i<8; i++){
-                        compared += symbol.charAt(i);
-                        if(codeToString.containsKey(compared) && numUnits != 0){
-                            bos.write(codeToString.get(compared).getBytes(StandardCharsets.ISO_8859_1));
-                            compared = "";
-                            numUnits--;
-                        }
-                    }
+            int bits = entry & (LINK - 1);
+            entry = table[(entry >>> 7) + (br.peek(primaryBits + bits) & ((1 << bits) - 1))];
+            br.skip(primaryBits + (entry & (LINK - 1)));
+            return entry >>> 7;
+        }
 
-                }
-                while(numUnits != 0){
-                    if(codeToString.containsKey(compared)){
-
-                        bos.write(codeToString.get(compared).getBytes(StandardCharsets.ISO_8859_1));
-                        numUnits--;
-                        break;
-                    }
-                    compared += '0';
-                }
+        private int decodeSlow(BitReader br) throws IOException{
+            long code = 0, first = 0;
+            int index = 0;
+            for(int length=1; length<lengthCount.length; length++){
+                code |= br.read(1);
+                int count = lengthCount[length];
+                if(code - first < count) return sortedSymbols[index + (int)(code - first)];
+                index += count;
+                first = (first + count) << 1;
+                code <<= 1;
             }
-        }catch(Exception e){
-            e.printStackTrace();
+            throw new IOException("Invalid Huffman code");
         }
     }
 }
@@ -0,0 +1,408 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * LZ77 with a sliding window of 32 KB to 8 MB (LZSS style: a token is either a literal byte or
+ * a (length, distance) match). Matches are found through hash chains on the next 3 bytes and the
+ * level sets how far the chains are followed and how many positions ahead a match may be put
+ * off for a longer one (lazy matching). Literals, lengths and distances are coded with the
+ * canonical Huffman codes of {@link Huffman}.
+ */
+public class LZ77 implements CompressionAlgorithm {
+
+    // Header: 3 magic bytes, a version byte, the window bits and the level.
+    //
+    // Then blocks, each starting with a 1 bit and closed by END_OF_BLOCK, and a final 0 bit.
+    // A block holds 4-bit code lengths of the literal/length and the distance alphabets, then the
+    // tokens. Lengths and distances are coded as a bucket symbol followed by extra bits: values
+    // below 4 have a bucket of their own, larger ones are split in two buckets per power of two.
+    private static final int MAGIC = 0x4C5A37; // "LZ7"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final int MIN_WINDOW_BITS = 15;
+    private static final int MAX_WINDOW_BITS = 23;
+    private static final int DEFAULT_WINDOW_BITS = 15;
+    private static final int MIN_LEVEL = 1;
+    private static final int MAX_LEVEL = 9;
+    private static final int DEFAULT_LEVEL = 6;
+    private static final int MIN_MATCH = 3;
+    private static final int MAX_MATCH = 258;
+    private static final int TOO_FAR = 4096; // shortest matches further back cost more than their literals
+    private static final int END_OF_BLOCK = 256;
+    private static final int FIRST_LENGTH_SYMBOL = 257;
+    private static final int LENGTH_CODES = 16; // lengths up to MAX_MATCH
+    private static final int LITERAL_LENGTH_SYMBOLS = FIRST_LENGTH_SYMBOL + LENGTH_CODES;
+    private static final int DISTANCE_CODES = 2 * MAX_WINDOW_BITS;
+    private static final int MAX_CODE_LENGTH = 15; // fits in the 4-bit code lengths
+    private static final int CODE_LENGTH_BITS = 4;
+    private static final int BLOCK_TOKENS = 1 << 16;
+    private static final int MAX_HASH_BITS = 20; // the hash table has as many entries as the window up to this
+    private static final int CHUNK_SIZE = 1 << 20; // input read between two slides of the window
+
+    // max chain length, positions looked ahead for a longer match, length of a match that is put
+    // off no more, length past which the positions ahead only get a quarter of the chain, and
+    // length that stops the search
+    private static final int[][] LEVELS = {
+        {4, 0, 0, 0, 16}, {8, 0, 0, 0, 32}, {32, 0, 0, 0, 32},
+        {16, 1, 4, 4, 16}, {32, 1, 16, 8, 32}, {128, 1, 16, 8, 128},
+        {256, 2, 32, 8, 128}, {1024, 2, 128, 32, MAX_MATCH}, {4096, 2, MAX_MATCH, 32, MAX_MATCH},
+    };
+
+    private final int level;
+    private final int windowBits;
+
+    public LZ77() {
+        this(DEFAULT_LEVEL);
+    }
+
+    /**
+     * Creates an LZ77 coder with the default window of 32 KB. Level 1 is the fastest, level 9
+     * gives the smallest output.
+     */
+    public LZ77(int level) {
+        this(level, DEFAULT_WINDOW_BITS);
+    }
+
+    /**
+     * Creates an LZ77 coder whose matches reach up to 2^windowBits bytes back. A larger window
+     * finds repeats further back but makes the long chains of the high levels slower to follow.
+     */
+    public LZ77(int level, int windowBits) {
+        if (level < MIN_LEVEL || level > MAX_LEVEL)
+            throw new IllegalArgumentException("Level must be between " + MIN_LEVEL + " and " + MAX_LEVEL);
+        if (windowBits < MIN_WINDOW_BITS || windowBits > MAX_WINDOW_BITS)
+            throw new IllegalArgumentException("Window bits must be between " + MIN_WINDOW_BITS + " and " + MAX_WINDOW_BITS);
+        this.level = level;
+        this.windowBits = windowBits;
+    }
+
+    @Override
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) (MAGIC >>> 16)).put((byte) (MAGIC >>> 8)).put((byte) MAGIC);
+        header.put((byte) VERSION).put((byte) windowBits).put((byte) level);
+        ChannelIO.writeFully(outputChannel, header.flip());
+
+        BitWriter outputStream = new BitWriter(outputChannel);
+        new Encoder(inputChannel, outputStream, windowBits, LEVELS[level - 1]).encode();
+        outputStream.write(0, 1);
+        outputStream.flush();
+    }
+
+    @Override
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (ChannelIO.readFully(inputChannel, header) < HEADER_SIZE)
+            throw new IOException("Not LZ77 compressed data");
+        header.flip();
+        int magic = (header.get() & 0xFF) << 16 | (header.get() & 0xFF) << 8 | (header.get() & 0xFF);
+        if (magic != MAGIC || header.get() != VERSION)
+            throw new IOException("Not LZ77 compressed data");
+        int bits = header.get();
+        if (bits < MIN_WINDOW_BITS || bits > MAX_WINDOW_BITS)
+            throw new IOException("Invalid window size: " + bits);
+
+        new Decoder(new BitReader(inputChannel), outputChannel, bits).decode();
+    }
+
+    //
+    // Encoding
+    //
+
+    private static final class Encoder {
+        private final ReadableByteChannel input;
+        private final BitWriter output;
+        private final int windowSize;
+        private final int windowMask;
+        private final int maxChain;
+        private final int lazy;
+        private final int lazyLimit;
+        private final int goodLength;
+        private final int niceLength;
+        private final int hashBits;
+
+        // the window followed by the bytes not coded yet, positions in head and prev index it
+        private final byte[] buffer;
+        private final int[] head;
+        private final int[] prev;
+        private int position;
+        private int end;
+        private int inserted; // positions below it are in the hash chains
+        private boolean endOfInput;
+
+        // result of the last search, kept as the lazy matching looks at the same positions twice
+        private int searched = -1;
+        private int matchLength;
+        private int matchDistance;
+
+        // tokens of the current block: a length of 0 is a literal with the byte as its value
+        private final int[] tokenLengths = new int[BLOCK_TOKENS];
+        private final int[] tokenValues = new int[BLOCK_TOKENS];
+        private int tokens;
+        private final long[] literalLengthFreqs = new long[LITERAL_LENGTH_SYMBOLS];
+        private final long[] distanceFreqs = new long[DISTANCE_CODES];
+
+        Encoder(ReadableByteChannel input, BitWriter output, int windowBits, int[] level) {
+            this.input = input;
+            this.output = output;
+            this.windowSize = 1 << windowBits;
+            this.windowMask = windowSize - 1;
+            this.maxChain = level[0];
+            this.lazy = level[1];
+            this.lazyLimit = level[2];
+            this.goodLength = level[3];
+            this.niceLength = level[4];
+            this.hashBits = Math.min(windowBits, MAX_HASH_BITS);
+            this.buffer = new byte[windowSize + Math.max(windowSize, CHUNK_SIZE)];
+            this.prev = new int[windowSize];
+            this.head = new int[1 << hashBits];
+            Arrays.fill(head, -1);
+        }
+
+        void encode() throws IOException {
+            while (true) {
+                if (!endOfInput && end - position < MAX_MATCH + lazy + 1) fill();
+                if (position >= end) break;
+
+                search(position, maxChain);
+                int length = matchLength, distance = matchDistance;
+                if (length < MIN_MATCH) {
+                    literal(buffer[position++]);
+                    continue;
+                }
+                // put the match off if one of the next positions starts a longer one
+                int skip = 0;
+                for (int ahead = 1; ahead <= lazy && length < lazyLimit; ahead++) {
+                    search(position + ahead, length >= goodLength ? maxChain >> 2 : maxChain);
+                    if (matchLength > length + ahead - 1) {
+                        skip = ahead;
+                        break;
+                    }
+                }
+                if (skip > 0) {
+                    for (int i = 0; i < skip; i++) literal(buffer[position++]);
+                    continue;
+                }
+                match(length, distance);
+                position += length;
+            }
+            if (tokens > 0) writeBlock();
+        }
+
+        /**
+         * Finds the longest match starting at the given position, at most maxChain candidates back.
+         */
+        private void search(int at, int maxChain) {
+            if (at == searched) return;
+            searched = at;
+            matchLength = 0;
+            matchDistance = 0;
+            int limit = Math.min(MAX_MATCH, end - at);
+            if (limit < MIN_MATCH) return;
+            insertUpTo(at);
+
+            int best = MIN_MATCH - 1;
+            int oldest = at - windowSize;
+            int candidate = head[hash(at)];
+            for (int chain = maxChain; candidate > oldest && candidate >= 0 && chain > 0; chain--) {
+                // the byte that would make the match longer is checked first
+                if (buffer[candidate + best] == buffer[at + best]) {
+                    int length = Arrays.mismatch(buffer, candidate, candidate + limit, buffer, at, at + limit);
+                    if (length < 0) length = limit;
+                    if (length > best) {
+                        best = length;
+                        matchDistance = at - candidate;
+                        if (length >= niceLength || length == limit) break;
+                    }
+                }
+                candidate = prev[candidate & windowMask];
+            }
+            if (best >= MIN_MATCH && !(best == MIN_MATCH && matchDistance > TOO_FAR)) matchLength = best;
+        }
+
+        private void insertUpTo(int at) {
+            while (inserted < at && inserted + MIN_MATCH <= end) {
+                int h = hash(inserted);
+                prev[inserted & windowMask] = head[h];
+                head[h] = inserted++;
+            }
+        }
+
+        private int hash(int at) {
+            int key = (buffer[at] & 0xFF) << 16 | (buffer[at + 1] & 0xFF) << 8 | (buffer[at + 2] & 0xFF);
+            return (key * 0x9E3779B1) >>> (32 - hashBits);
+        }
+
+        /**
+         * Reads more input, first sliding the window to the start of the buffer if it's full.
+         */
+        private void fill() throws IOException {
+            if (end == buffer.length) {
+                int shift = position - windowSize;
+                System.arraycopy(buffer, shift, buffer, 0, end - shift);
+                position -= shift;
+                end -= shift;
+                inserted -= shift;
+                searched -= shift;
+                for (int i = 0; i < head.length; i++) head[i] = head[i] >= shift ? head[i] - shift : -1;
+                for (int i = 0; i < prev.length; i++) prev[i] = prev[i] >= shift ? prev[i] - shift : -1;
+            }
+            int read = ChannelIO.readFully(input, ByteBuffer.wrap(buffer, end, buffer.length - end));
+            end += read;
+            if (end < buffer.length) endOfInput = true;
+        }
+
+        private void literal(byte value) throws IOException {
+            tokenLengths[tokens] = 0;
+            tokenValues[tokens] = value & 0xFF;
+            literalLengthFreqs[value & 0xFF]++;
+            if (++tokens == BLOCK_TOKENS) writeBlock();
+        }
+
+        private void match(int length, int distance) throws IOException {
+            tokenLengths[tokens] = length;
+            tokenValues[tokens] = distance;
+            literalLengthFreqs[FIRST_LENGTH_SYMBOL + bucket(length - MIN_MATCH)]++;
+            distanceFreqs[bucket(distance - 1)]++;
+            if (++tokens == BLOCK_TOKENS) writeBlock();
+        }
+
+        private void writeBlock() throws IOException {
+            literalLengthFreqs[END_OF_BLOCK] = 1;
+            int[] literalLengthLengths = Huffman.generateCodeLengths(literalLengthFreqs, MAX_CODE_LENGTH);
+            int[] distanceLengths = Huffman.generateCodeLengths(distanceFreqs, MAX_CODE_LENGTH);
+            long[] literalLengthCodes = Huffman.generateCanonicalCodes(literalLengthLengths);
+            long[] distanceCodes = Huffman.generateCanonicalCodes(distanceLengths);
+
+            output.write(1, 1);
+            for (int length : literalLengthLengths) output.write(length, CODE_LENGTH_BITS);
+            for (int length : distanceLengths) output.write(length, CODE_LENGTH_BITS);
+            for (int i = 0; i < tokens; i++) {
+                int length = tokenLengths[i];
+                if (length == 0) {
+                    int symbol = tokenValues[i];
+                    output.write(literalLengthCodes[symbol], literalLengthLengths[symbol]);
+                    continue;
+                }
+                int code = bucket(length - MIN_MATCH);
+                output.write(literalLengthCodes[FIRST_LENGTH_SYMBOL + code], literalLengthLengths[FIRST_LENGTH_SYMBOL + code]);
+                output.write(length - MIN_MATCH - base(code), extraBits(code));
+                int distance = tokenValues[i] - 1;
+                code = bucket(distance);
+                output.write(distanceCodes[code], distanceLengths[code]);
+                output.write(distance - base(code), extraBits(code));
+            }
+            output.write(literalLengthCodes[END_OF_BLOCK], literalLengthLengths[END_OF_BLOCK]);
+
+            tokens = 0;
+            Arrays.fill(literalLengthFreqs, 0);
+            Arrays.fill(distanceFreqs, 0);
+        }
+    }
+
+    //
+    // Decoding
+    //
+
+    private static final class Decoder {
+        private final BitReader input;
+        private final WritableByteChannel output;
+        private final int windowSize;
+        // the last windowSize bytes written followed by the ones not written yet
+        private final byte[] buffer;
+        private int position;
+        private int flushed;
+
+        Decoder(BitReader input, WritableByteChannel output, int windowBits) {
+            this.input = input;
+            this.output = output;
+            this.windowSize = 1 << windowBits;
+            this.buffer = new byte[windowSize + Math.max(windowSize, CHUNK_SIZE)];
+        }
+
+        void decode() throws IOException {
+            while (input.read(1) == 1) {
+                Huffman.CanonicalDecoder literalLengths = new Huffman.CanonicalDecoder(readLengths(LITERAL_LENGTH_SYMBOLS));
+                Huffman.CanonicalDecoder distances = new Huffman.CanonicalDecoder(readLengths(DISTANCE_CODES));
+                int symbol;
+                while ((symbol = literalLengths.decode(input)) != END_OF_BLOCK) {
+                    if (symbol < END_OF_BLOCK) {
+                        if (position == buffer.length) slide();
+                        buffer[position++] = (byte) symbol;
+                        continue;
+                    }
+                    int code = symbol - FIRST_LENGTH_SYMBOL;
+                    int length = MIN_MATCH + base(code) + readExtra(code);
+                    code = distances.decode(input);
+                    int distance = 1 + base(code) + readExtra(code);
+                    if (length > MAX_MATCH || distance > windowSize)
+                        throw new IOException("Corrupted LZ77 data");
+                    if (position + length > buffer.length) slide();
+                    if (distance > position)
+                        throw new IOException("Corrupted LZ77 data");
+                    // byte by byte, a match may overlap the bytes it produces
+                    for (int from = position - distance, to = position + length; position < to; )
+                        buffer[position++] = buffer[from++];
+                }
+            }
+            ChannelIO.writeFully(output, ByteBuffer.wrap(buffer, flushed, position - flushed));
+        }
+
+        private int[] readLengths(int count) throws IOException {
+            int[] lengths = new int[count];
+            int kraft = 0; // the codes take up kraft / 2^MAX_CODE_LENGTH of the code space
+            for (int i = 0; i < count; i++) {
+                lengths[i] = input.read(CODE_LENGTH_BITS);
+                if (lengths[i] != 0) kraft += 1 << (MAX_CODE_LENGTH - lengths[i]);
+            }
+            if (kraft > 1 << MAX_CODE_LENGTH)
+                throw new IOException("Corrupted LZ77 data");
+            return lengths;
+        }
+
+        private int readExtra(int code) throws IOException {
+            int bits = extraBits(code);
+            return bits == 0 ? 0 : input.read(bits);
+        }
+
+        /**
+         * Writes out the decoded bytes and keeps only the window at the start of the buffer.
+         */
+        private void slide() throws IOException {
+            ChannelIO.writeFully(output, ByteBuffer.wrap(buffer, flushed, position - flushed));
+            int keep = Math.min(position, windowSize);
+            System.arraycopy(buffer, position - keep, buffer, 0, keep);
+            position = flushed = keep;
+        }
+    }
+
+    //
+    // Length and distance buckets
+    //
+
+    private static int bucket(int value) {
+        if (value < 4) return value;
+        int highBit = 31 - Integer.numberOfLeadingZeros(value);
+        return 2 * highBit + ((value >>> (highBit - 1)) & 1);
+    }
+
+    private static int extraBits(int code) {
+        return code < 4 ? 0 : code / 2 - 1;
+    }
+
+    private static int base(int code) {
+        return code < 4 ? code : (2 | (code & 1)) << (code / 2 - 1);
+    }
+
+    public String getCompressedPath(String path) {
+        return path + ".lz77";
+    }
+
+    public String getDecompressedPath(String path) {
+        String originalFilePath = path.substring(0, path.length() - 5);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+    }
+}
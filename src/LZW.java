@@ -1,117 +1,239 @@
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Paths;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * Implementation of Lempel–Ziv–Welch compression algorithm.
  */
 public class LZW implements CompressionAlgorithm {
 
+    // Header: 3 magic bytes, a version byte, the maximum code width and the layout mode.
+    //
+    // Stream mode: the codes follow packed MSB-first. Codes start at MIN_WIDTH bits and widen
+    // whenever the dictionary outgrows the current width, up to the maximum width. Once the
+    // dictionary is full it stops growing and the encoder emits CLEAR_CODE as soon as the
+    // compression ratio starts to drop.
+    //
+    // Block mode: independent blocks, each [raw length, compressed length, codes] with a fresh
+    // dictionary, closed by an empty block. A trailing index of (block offset, raw length) and a
+    // footer (index offset, block count) let the blocks be located and decoded in parallel.
+    private static final int MAGIC = 0x4C5A57; // "LZW"
+    private static final int VERSION = 3;
+    private static final int STREAM_MODE = 0;
+    private static final int BLOCK_MODE = 1;
+    private static final int HEADER_SIZE = 6;
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int FOOTER_SIZE = 12;
+    private static final int END_CODE = 256;
+    private static final int CLEAR_CODE = 257;
+    private static final int FIRST_CODE = 258;
+    private static final int MIN_WIDTH = 9;
+    private static final int MAX_WIDTH = 20;
+    private static final int DEFAULT_MAX_WIDTH = 16;
+    private static final int CHECK_GAP = 10000; // input bytes between ratio checks once full
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final int maxCodeWidth;
+    private final int blockSize;
+    private final int parallelism;
+    private final MetricsListener metrics;
+
+    public LZW() {
+        this(DEFAULT_MAX_WIDTH);
+    }
+
+    /**
+     * Creates an LZW coder whose dictionary is capped at 2^maxCodeWidth entries.
+     */
+    public LZW(int maxCodeWidth) {
+        this(maxCodeWidth, 0, 1);
+    }
+
+    /**
+     * Creates an LZW coder that splits the input into independent blocks of blockSize bytes and
+     * codes up to parallelism blocks at once. A block size of 0 writes a single stream instead.
+     */
+    public LZW(int maxCodeWidth, int blockSize, int parallelism) {
+        this(maxCodeWidth, blockSize, parallelism, MetricsListener.NONE);
+    }
+
+    /**
+     * Same as above, reporting the time and the figures of every call to metrics.
+     */
+    public LZW(int maxCodeWidth, int blockSize, int parallelism, MetricsListener metrics) {
+        if (maxCodeWidth < MIN_WIDTH || maxCodeWidth > MAX_WIDTH)
+            throw new IllegalArgumentException("Code width must be between " + MIN_WIDTH + " and " + MAX_WIDTH);
+        if (blockSize < 0)
+            throw new IllegalArgumentException("Block size must not be negative");
+        if (parallelism < 1)
+            throw new IllegalArgumentException("Parallelism must be at least 1");
+        this.maxCodeWidth = maxCodeWidth;
+        this.blockSize = blockSize;
+        this.parallelism = parallelism;
+        this.metrics = metrics;
+    }
+
     @Override
-    public void compress(String filePath) throws IOException {
-        File compressedFile = new File(getCompressedPath(filePath));
-
-        // Initialize dictionary with all possible byte values.
-        Map<ByteArrayWrapper, Integer> dictionary = new HashMap<>();
-        for (int i = 0; i < 256; i++) {
-            byte[] b = new byte[1];
-            b[0] = (byte) i;
-            dictionary.put(new ByteArrayWrapper(b), i);
-        }
-
-        // Read input file into a byte array.
-        byte[] inputBytes;
-        try (InputStream inputStream = Files.newInputStream(Paths.get(filePath))) {
-            inputBytes = inputStream.readAllBytes();
-        }
-
-        // Compress the input data.
-        List<Integer> outputBytes = new ArrayList<>();
-        byte[] current = new byte[0];
-        for (byte b : inputBytes) {
-            byte[] next = new byte[current.length + 1];
-            System.arraycopy(current, 0, next, 0, current.length);
-            next[current.length] = b;
-            if (dictionary.containsKey(new ByteArrayWrapper(next))) {
-                current = next;
-            } else {
-                Integer outByte = dictionary.get(new ByteArrayWrapper(current));
-                outputBytes.add(outByte);
-                dictionary.put(new ByteArrayWrapper(next), dictionary.size());
-                current = new byte[1];
-                current[0] = b;
-            }
-        }
-        if (current.length > 0) {
-            Integer outByte = dictionary.get(new ByteArrayWrapper(current));
-            outputBytes.add(outByte);
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        long time = startTime();
+        Figures figures = metrics == MetricsListener.NONE ? null : new Figures();
+        if (figures != null) outputChannel = figures.output = new CountingChannel(outputChannel);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        header.put((byte) (MAGIC >>> 16)).put((byte) (MAGIC >>> 8)).put((byte) MAGIC);
+        header.put((byte) VERSION).put((byte) maxCodeWidth).put((byte) (blockSize > 0 ? BLOCK_MODE : STREAM_MODE));
+        ChannelIO.writeFully(outputChannel, header.flip());
+
+        if (blockSize > 0) {
+            compressBlocks(inputChannel, outputChannel, figures);
+            report(true, maxCodeWidth, time, figures);
+            return;
         }
 
-        // Write compressed data to output file.
-        try (ObjectOutputStream outputStream = new ObjectOutputStream(new FileOutputStream(compressedFile))) {
-            outputStream.writeObject(outputBytes);
+        // Stream the input through a fixed buffer straight into the code stream.
+        BitWriter outputStream = new BitWriter(outputChannel);
+        Encoder encoder = new Encoder(outputStream, maxCodeWidth);
+        ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        int read;
+        while ((read = inputChannel.read(buffer.clear())) != -1) {
+            encoder.encode(buffer.array(), 0, read);
         }
+        encoder.finish();
+        outputStream.flush();
+        if (figures != null) figures.add(encoder.bytesIn, encoder.codes, encoder.peakCode);
+        report(true, maxCodeWidth, time, figures);
     }
 
     @Override
-    public void decompress(String filePath) throws IOException {
-        File inputFile = new File(filePath);
-        // file extension should be changed if the original file is not txt file
-        File decompressedFile = new File(getDecompressedPath(filePath));
-
-        // Initialize dictionary with all possible byte values.
-        Map<Integer, ByteArrayWrapper> dictionary = new HashMap<>();
-        for (int i = 0; i < 256; i++) {
-            byte[] b = new byte[1];
-            b[0] = (byte) i;
-            dictionary.put(i, new ByteArrayWrapper(b));
-        }
-
-        // Read input file into a byte array.
-        List<Integer> inputBytes;
-        try (ObjectInputStream inputStream = new ObjectInputStream(new FileInputStream(inputFile))) {
-            inputBytes = (ArrayList<Integer>) inputStream.readObject();
-        } catch (ClassNotFoundException e) {
-            throw new RuntimeException(e);
-        }
-
-        // Decompress the input data.
-        ByteArrayOutputStream decompressedData = new ByteArrayOutputStream();
-        int currentCode = inputBytes.get(0);
-        byte[] currentByte = dictionary.get(currentCode).bytes();
-        decompressedData.write(currentByte);
-        for (int i = 1; i < inputBytes.size(); i++) {
-            int nextCode = inputBytes.get(i);
-            byte[] nextByte;
-            if (dictionary.containsKey(nextCode)) {
-                nextByte = dictionary.get(nextCode).bytes();
-            } else {
-                nextByte = new byte[currentByte.length + 1];
-                System.arraycopy(currentByte, 0, nextByte, 0, currentByte.length);
-                nextByte[currentByte.length] = currentByte[0];
-            }
-            decompressedData.write(nextByte);
-            byte[] addedByte = new byte[currentByte.length + 1];
-            System.arraycopy(currentByte, 0, addedByte, 0, currentByte.length);
-            addedByte[currentByte.length] = nextByte[0];
-            dictionary.put(dictionary.size(), new ByteArrayWrapper(addedByte));
-            currentByte = nextByte;
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        long time = startTime();
+        Figures figures = metrics == MetricsListener.NONE ? null : new Figures();
+        if (figures != null) inputChannel = figures.input = new CountingChannel(inputChannel);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        if (ChannelIO.readFully(inputChannel, header) != HEADER_SIZE)
+            throw new IOException("Truncated LZW header");
+        header.flip();
+        int magic = ((header.get() & 0xFF) << 16) | ((header.get() & 0xFF) << 8) | (header.get() & 0xFF);
+        if (magic != MAGIC || header.get() != VERSION)
+            throw new IOException("Not LZW compressed data");
+        int width = header.get();
+        if (width < MIN_WIDTH || width > MAX_WIDTH)
+            throw new IOException("Invalid LZW code width: " + width);
+        int mode = header.get();
+
+        if (mode == BLOCK_MODE) {
+            decompressBlocks(inputChannel, outputChannel, width, figures);
+        } else if (mode == STREAM_MODE) {
+            Decoder decoder = new Decoder(new BitReader(inputChannel), outputChannel, width);
+            decoder.decode();
+            if (figures != null) figures.add(decoder.bytesOut, decoder.codes, decoder.peakCode);
+        } else {
+            throw new IOException("Unknown LZW layout: " + mode);
         }
+        report(false, width, time, figures);
+    }
 
+    /**
+     * Compresses fixed-size blocks on a fork-join pool and writes them in order, followed by the block index.
+     */
+    private void compressBlocks(ReadableByteChannel inputChannel, WritableByteChannel outputChannel, Figures figures) throws IOException {
+        BlockIndex index = new BlockIndex();
+        ChannelIO.codeBlocks(inputChannel, blockSize, parallelism,
+                (data, length) -> compressBlock(data, length, maxCodeWidth, figures),
+                block -> {
+                    index.add(block.rawLength(), BLOCK_HEADER_SIZE + block.data().length);
+                    writeBlock(outputChannel, block);
+                });
+        writeBlock(outputChannel, new Block(0, new byte[0]));
+        index.write(outputChannel);
+    }
 
-        // Write decompressed data to output file.
-        try (OutputStream outputStream = new BufferedOutputStream(new FileOutputStream(decompressedFile))) {
-            outputStream.write(decompressedData.toByteArray());
+    /**
+     * Reads the blocks in order and decodes them on a fork-join pool, then checks them against the trailing index.
+     */
+    private void decompressBlocks(ReadableByteChannel inputChannel, WritableByteChannel outputChannel, int width, Figures figures) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            ChannelIO.Pipeline<ByteBuffer> pipeline = new ChannelIO.Pipeline<>(pool, buffer -> ChannelIO.writeFully(outputChannel, buffer));
+            ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+            int blocks = 0;
+            while (true) {
+                if (ChannelIO.readFully(inputChannel, blockHeader.clear()) != BLOCK_HEADER_SIZE)
+                    throw new IOException("Truncated LZW block file");
+                blockHeader.flip();
+                int rawLength = blockHeader.getInt();
+                int compressedLength = blockHeader.getInt();
+                if (rawLength == 0) break;
+                if (rawLength < 0 || compressedLength < 0)
+                    throw new IOException("Corrupt LZW block " + blocks);
+                byte[] compressed = new byte[compressedLength];
+                if (ChannelIO.readFully(inputChannel, ByteBuffer.wrap(compressed)) != compressedLength)
+                    throw new IOException("Truncated LZW block file");
+                pipeline.submit(() -> decompressBlock(compressed, rawLength, width, figures));
+                blocks++;
+            }
+            pipeline.finish();
+            BlockIndex.skip(inputChannel, blocks);
+        } finally {
+            pool.shutdown();
         }
     }
 
-    public static String changeExtension(String filePath, String newExtension, boolean addDecompressed) {
-        int i = filePath.lastIndexOf('.');
-        String newFilePath = filePath.substring(0, i);
-        if(addDecompressed)
-            newFilePath = newFilePath + "_decompressed";
-        return newFilePath + newExtension;
+    private static Block compressBlock(byte[] data, int length, int maxCodeWidth, Figures figures) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(length / 2);
+        BitWriter outputStream = new BitWriter(Channels.newChannel(compressed));
+        Encoder encoder = new Encoder(outputStream, maxCodeWidth);
+        encoder.encode(data, 0, length);
+        encoder.finish();
+        outputStream.flush();
+        if (figures != null) figures.add(length, encoder.codes, encoder.peakCode);
+        return new Block(length, compressed.toByteArray());
+    }
+
+    private static ByteBuffer decompressBlock(byte[] compressed, int rawLength, int width, Figures figures) throws IOException {
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream(rawLength);
+        BitReader inputStream = new BitReader(Channels.newChannel(new ByteArrayInputStream(compressed)));
+        Decoder decoder = new Decoder(inputStream, Channels.newChannel(decompressed), width);
+        decoder.decode();
+        if (decompressed.size() != rawLength)
+            throw new IOException("Corrupt LZW block of " + rawLength + " bytes");
+        if (figures != null) figures.add(rawLength, decoder.codes, decoder.peakCode);
+        return ByteBuffer.wrap(decompressed.toByteArray());
+    }
+
+    private static void writeBlock(WritableByteChannel outputChannel, Block block) throws IOException {
+        ByteBuffer blockHeader = ByteBuffer.allocate(BLOCK_HEADER_SIZE);
+        blockHeader.putInt(block.rawLength()).putInt(block.data().length).flip();
+        ChannelIO.writeFully(outputChannel, blockHeader);
+        ChannelIO.writeFully(outputChannel, ByteBuffer.wrap(block.data()));
+    }
+
+    // the start of the call, not taken without a listener
+    private long startTime() {
+        return metrics == MetricsListener.NONE ? 0 : System.nanoTime();
+    }
+
+    // LZW reads, codes and writes as it goes, so the whole call is a single phase
+    // width is the maximum code width of the stream, read from the header when decompressing
+    private void report(boolean compress, int width, long start, Figures figures) {
+        if (figures == null) return;
+        metrics.phase("LZW", compress, compress ? MetricsListener.Phase.ENCODE : MetricsListener.Phase.DECODE, System.nanoTime() - start);
+        long raw = figures.raw.sum();
+        metrics.call(new MetricsListener.Call("LZW", compress,
+                compress ? raw : figures.input.getCount(), compress ? figures.output.getCount() : raw,
+                figures.codes.sum(), figures.peakCode.get(), 1L << width));
+    }
+
+    /**
+     * Returns the number of bits needed to write any code below nextCode.
+     */
+    private static int codeWidth(int nextCode) {
+        return Math.max(MIN_WIDTH, 32 - Integer.numberOfLeadingZeros(nextCode - 1));
     }
 
     public String getCompressedPath(String path) {
@@ -120,22 +242,302 @@ public class LZW implements CompressionAlgorithm {
 
     public String getDecompressedPath(String path) {
         String originalFilePath = path.substring(0, path.length() - 4);
-        return changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
     }
 
-    private record ByteArrayWrapper(byte[] bytes) {
+    private record Block(int rawLength, byte[] data) { }
+
+    /**
+     * Figures of a call, added up over its blocks, only kept for a metrics listener.
+     */
+    private static final class Figures {
+        private final LongAdder raw = new LongAdder();
+        private final LongAdder codes = new LongAdder();
+        private final LongAccumulator peakCode = new LongAccumulator(Math::max, 0);
+        private CountingChannel input;
+        private CountingChannel output;
+
+        void add(long rawBytes, long codeCount, int peak) {
+            raw.add(rawBytes);
+            codes.add(codeCount);
+            peakCode.accumulate(peak);
+        }
+    }
 
-        @Override
-            public int hashCode() {
-                return Arrays.hashCode(bytes);
+    /**
+     * Offsets and raw lengths of the blocks in a block-mode file.
+     */
+    private static final class BlockIndex {
+        private long[] offsets = new long[16];
+        private int[] rawLengths = new int[16];
+        private int size;
+        private long position = HEADER_SIZE; // where the next block starts
+
+        void add(int rawLength, int compressedLength) {
+            if (size == offsets.length) {
+                offsets = Arrays.copyOf(offsets, size << 1);
+                rawLengths = Arrays.copyOf(rawLengths, size << 1);
             }
+            offsets[size] = position;
+            rawLengths[size++] = rawLength;
+            position += compressedLength;
+        }
+
+        // written after the end block, which is where the index starts
+        void write(WritableByteChannel outputChannel) throws IOException {
+            long indexOffset = position + BLOCK_HEADER_SIZE;
+            ByteBuffer buffer = ByteBuffer.allocate(size * 12 + FOOTER_SIZE);
+            for (int i = 0; i < size; i++) buffer.putLong(offsets[i]).putInt(rawLengths[i]);
+            buffer.putLong(indexOffset).putInt(size);
+            ChannelIO.writeFully(outputChannel, buffer.flip());
+        }
+
+        /**
+         * Reads past the index that follows the given number of blocks, checking its footer.
+         */
+        static void skip(ReadableByteChannel inputChannel, int blocks) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(blocks * 12 + FOOTER_SIZE);
+            if (ChannelIO.readFully(inputChannel, buffer) != buffer.capacity())
+                throw new IOException("Truncated LZW block index");
+            if (buffer.getInt(buffer.capacity() - 4) != blocks)
+                throw new IOException("Corrupt LZW block index");
+        }
+    }
+
+    /**
+     * Streaming LZW encoder over a bounded dictionary. Single bytes are implicitly codes 0..255,
+     * every other dictionary entry is keyed on (prefix code, next byte).
+     */
+    private static final class Encoder {
+        private final BitWriter outputStream;
+        private final int limit;
+        private final CodeTable dictionary;
+        private int nextCode = FIRST_CODE;
+        private int current = -1;
+        private int peakCode = FIRST_CODE; // dictionary size before the last clear
+        private long codes;
+        private long bytesIn;
+        private long checkpoint = CHECK_GAP;
+        private double bestRatio;
+
+        Encoder(BitWriter outputStream, int maxCodeWidth) {
+            this.outputStream = outputStream;
+            this.limit = 1 << maxCodeWidth;
+            this.dictionary = new CodeTable(limit);
+        }
 
-            @Override
-            public boolean equals(Object obj) {
-                if (obj instanceof ByteArrayWrapper other) {
-                    return Arrays.equals(bytes, other.bytes);
+        void encode(byte[] data, int offset, int length) throws IOException {
+            for (int i = offset; i < offset + length; i++) {
+                int symbol = data[i] & 0xFF;
+                if (current == -1) {
+                    current = symbol;
+                    continue;
                 }
-                return false;
+                int next = nextCode < limit
+                        ? dictionary.putIfAbsent(current, symbol, nextCode)
+                        : dictionary.get(current, symbol);
+                if (next != -1) {
+                    current = next;
+                    continue;
+                }
+                outputStream.write(current, codeWidth(nextCode));
+                codes++;
+                if (nextCode < limit) {
+                    nextCode++;
+                } else if (bytesIn + i - offset >= checkpoint) {
+                    checkRatio(bytesIn + i - offset);
+                }
+                current = symbol;
+            }
+            bytesIn += length;
+        }
+
+        void finish() throws IOException {
+            // the decoder adds an entry for the last code, so after it END is one code wider
+            int endWidth = codeWidth(nextCode);
+            if (current != -1) {
+                outputStream.write(current, codeWidth(nextCode));
+                codes++;
+                endWidth = codeWidth(Math.min(nextCode + 1, limit));
             }
+            outputStream.write(END_CODE, endWidth);
+            peakCode = Math.max(peakCode, nextCode);
+        }
+
+        // Same policy as Unix compress: keep a full dictionary while the ratio keeps improving.
+        private void checkRatio(long position) throws IOException {
+            checkpoint = position + CHECK_GAP;
+            double ratio = (double) position / Math.max(1, outputStream.getBitsWritten() >>> 3);
+            if (ratio > bestRatio) {
+                bestRatio = ratio;
+                return;
+            }
+            bestRatio = 0;
+            outputStream.write(CLEAR_CODE, codeWidth(nextCode));
+            dictionary.clear();
+            peakCode = Math.max(peakCode, nextCode);
+            nextCode = FIRST_CODE;
+        }
+    }
+
+    /**
+     * Open-addressed hash table mapping (prefix code, next byte) to the code of the extended string.
+     */
+    private static final class CodeTable {
+        private static final int EMPTY = -1;
+
+        private final int[] keys;
+        private final int[] codes;
+        private final int mask;
+
+        CodeTable(int capacity) {
+            keys = new int[Integer.highestOneBit(capacity) << 1];
+            codes = new int[keys.length];
+            mask = keys.length - 1;
+            clear();
+        }
+
+        /**
+         * Returns the code of (prefix, symbol) or -1 if absent.
+         */
+        int get(int prefix, int symbol) {
+            int key = (prefix << 8) | symbol;
+            for (int slot = hash(key) & mask; ; slot = (slot + 1) & mask) {
+                int k = keys[slot];
+                if (k == key) return codes[slot];
+                if (k == EMPTY) return -1;
+            }
+        }
+
+        /**
+         * Returns the code of (prefix, symbol) if present, otherwise stores it under the given code and returns -1.
+         */
+        int putIfAbsent(int prefix, int symbol, int code) {
+            int key = (prefix << 8) | symbol;
+            int slot = hash(key) & mask;
+            while (true) {
+                int k = keys[slot];
+                if (k == key) return codes[slot];
+                if (k == EMPTY) break;
+                slot = (slot + 1) & mask;
+            }
+            keys[slot] = key;
+            codes[slot] = code;
+            return -1;
+        }
+
+        void clear() {
+            Arrays.fill(keys, EMPTY);
         }
-}
\ No newline at end of file
+
+        private static int hash(int key) {
+            return (key * 0x9E3779B9) >>> 7;
+        }
+    }
+
+    /**
+     * Streaming LZW decoder. Every dictionary entry is stored as (prefix code, last byte, length),
+     * so a phrase is expanded backwards straight into the output buffer without any allocation.
+     */
+    private static final class Decoder {
+        private final BitReader inputStream;
+        private final WritableByteChannel outputChannel;
+        private final int limit;
+        private final int[] prefixes;
+        private final byte[] suffixes;
+        private final int[] lengths;
+        private final ByteBuffer buffer;
+        private final byte[] output;
+        private int position;
+        private int peakCode = FIRST_CODE;
+        private long codes;
+        private long bytesOut;
+
+        Decoder(BitReader inputStream, WritableByteChannel outputChannel, int maxCodeWidth) {
+            this.inputStream = inputStream;
+            this.outputChannel = outputChannel;
+            this.limit = 1 << maxCodeWidth;
+            this.prefixes = new int[limit];
+            this.suffixes = new byte[limit];
+            this.lengths = new int[limit];
+            for (int i = 0; i < 256; i++) {
+                suffixes[i] = (byte) i;
+                lengths[i] = 1;
+            }
+            // a phrase is never longer than the dictionary, so it always fits in an empty buffer
+            this.buffer = ByteBuffer.allocate(Math.max(BUFFER_SIZE, limit));
+            this.output = buffer.array();
+        }
+
+        /**
+         * Decodes codes until the end code and writes the phrases to the output channel.
+         */
+        void decode() throws IOException {
+            // The decoder adds each entry one code later than the encoder did, so the code width
+            // is derived from the encoder's dictionary size.
+            int nextCode = FIRST_CODE;
+            int previous = -1;
+            while (true) {
+                int code = inputStream.read(codeWidth(Math.min(previous == -1 ? nextCode : nextCode + 1, limit)));
+                if (code == END_CODE) break;
+                if (code == CLEAR_CODE) {
+                    peakCode = Math.max(peakCode, nextCode);
+                    nextCode = FIRST_CODE;
+                    previous = -1;
+                    continue;
+                }
+                codes++;
+                if (previous == -1) {
+                    if (code > 0xFF) throw new IOException("Corrupt LZW stream: unexpected code " + code);
+                    writePhrase(code);
+                    previous = code;
+                    continue;
+                }
+                int first;
+                if (code < nextCode) {
+                    first = writePhrase(code);
+                } else if (code == nextCode) {
+                    // the code being defined right now: previous phrase followed by its own first byte
+                    first = writePhrase(previous);
+                    output[position++] = (byte) first;
+                } else {
+                    throw new IOException("Corrupt LZW stream: unexpected code " + code);
+                }
+                if (nextCode < limit) {
+                    prefixes[nextCode] = previous;
+                    suffixes[nextCode] = (byte) first;
+                    lengths[nextCode] = lengths[previous] + 1;
+                    nextCode++;
+                }
+                previous = code;
+            }
+            peakCode = Math.max(peakCode, nextCode);
+            flush();
+        }
+
+        /**
+         * Expands the phrase of the given code into the output buffer and returns its first byte.
+         * Leaves room for one extra byte after the phrase.
+         */
+        private int writePhrase(int code) throws IOException {
+            int length = lengths[code];
+            if (position + length >= output.length) flush();
+            position += length;
+            int index = position;
+            while (code > 0xFF) {
+                output[--index] = suffixes[code];
+                code = prefixes[code];
+            }
+            output[--index] = (byte) code;
+            return code;
+        }
+
+        private void flush() throws IOException {
+            bytesOut += position;
+            buffer.position(0).limit(position);
+            while (buffer.hasRemaining()) outputChannel.write(buffer);
+            buffer.clear();
+            position = 0;
+        }
+    }
+}
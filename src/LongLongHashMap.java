@@ -0,0 +1,120 @@
+/**
+ * Open-addressed hash map from primitive long keys to long values.
+ */
+final class LongLongHashMap {
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    private long[] values;
+    private boolean[] used;
+    private int size;
+    private int mask;
+
+    LongLongHashMap() {
+        this(MIN_CAPACITY);
+    }
+
+    LongLongHashMap(int expectedSize) {
+        int capacity = Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize * 2 - 1)) << 1);
+        keys = new long[capacity];
+        values = new long[capacity];
+        used = new boolean[capacity];
+        mask = capacity - 1;
+    }
+
+    int size() { return size; }
+
+    int capacity() { return keys.length; }
+
+    /**
+     * Returns the value of the key or the default value if absent.
+     */
+    long get(long key, long defaultValue) {
+        for (int slot = hash(key) & mask; used[slot]; slot = (slot + 1) & mask) {
+            if (keys[slot] == key) return values[slot];
+        }
+        return defaultValue;
+    }
+
+    void put(long key, long value) {
+        int slot = findSlot(key);
+        if (!used[slot]) {
+            insert(slot, key, value);
+            return;
+        }
+        values[slot] = value;
+    }
+
+    /**
+     * Adds delta to the value of the key, starting from zero if absent.
+     */
+    void add(long key, long delta) {
+        int slot = findSlot(key);
+        if (!used[slot]) {
+            insert(slot, key, delta);
+            return;
+        }
+        values[slot] += delta;
+    }
+
+    void increment(long key) {
+        add(key, 1);
+    }
+
+    /**
+     * Adds the values of the other map to the values of this one.
+     */
+    void addAll(LongLongHashMap other) {
+        for (int slot = 0; slot < other.keys.length; slot++) {
+            if (other.used[slot]) add(other.keys[slot], other.values[slot]);
+        }
+    }
+
+    /**
+     * Returns the keys in no particular order.
+     */
+    long[] keys() {
+        long[] result = new long[size];
+        int index = 0;
+        for (int slot = 0; slot < keys.length; slot++) {
+            if (used[slot]) result[index++] = keys[slot];
+        }
+        return result;
+    }
+
+    private int findSlot(long key) {
+        int slot = hash(key) & mask;
+        while (used[slot] && keys[slot] != key) slot = (slot + 1) & mask;
+        return slot;
+    }
+
+    private void insert(int slot, long key, long value) {
+        keys[slot] = key;
+        values[slot] = value;
+        used[slot] = true;
+        if (++size > (keys.length >> 1)) grow();
+    }
+
+    private void grow() {
+        long[] oldKeys = keys;
+        long[] oldValues = values;
+        boolean[] oldUsed = used;
+        keys = new long[oldKeys.length << 1];
+        values = new long[oldKeys.length << 1];
+        used = new boolean[oldKeys.length << 1];
+        mask = keys.length - 1;
+        for (int i = 0; i < oldKeys.length; i++) {
+            if (!oldUsed[i]) continue;
+            int slot = hash(oldKeys[i]) & mask;
+            while (used[slot]) slot = (slot + 1) & mask;
+            keys[slot] = oldKeys[i];
+            values[slot] = oldValues[i];
+            used[slot] = true;
+        }
+    }
+
+    private static int hash(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
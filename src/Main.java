@@ -9,12 +9,16 @@ import java.security.NoSuchAlgorithmException;
  * Main driver code (used for testing).
  */
 public class Main {
-    private static final String FILE_PATH = "lorem.txt"; // File to be tested
+    private static final String FILE_PATH = "lorem10K.txt"; // File to be tested, unless given as an argument
 
     public static void main(String[] args) throws IOException, NoSuchAlgorithmException {
-        compressionAlgorithmMetrics(new Huffman(), FILE_PATH, "Huffman Algorithm");
-        compressionAlgorithmMetrics(new LZW(), FILE_PATH, "LZW Algorithm");
-        compressionAlgorithmMetrics(new ArithmeticCoding(), FILE_PATH, "Arithmetic Algorithm");
+        String path = args.length > 0 ? args[0] : FILE_PATH;
+        HistogramMetrics metrics = new HistogramMetrics();
+        compressionAlgorithmMetrics(new Huffman(1, 1, Huffman.UNLIMITED, metrics), path, "Huffman Algorithm");
+        compressionAlgorithmMetrics(new LZW(16, 0, 1, metrics), path, "LZW Algorithm");
+        compressionAlgorithmMetrics(new ArithmeticCoding(ArithmeticCoding.STATIC_MODEL, 3, ArithmeticCoding.BIT_CODER, metrics),
+                path, "Arithmetic Algorithm");
+        System.out.print(metrics.report());
     }
 
     private static boolean compareFiles(String file1, String file2) throws IOException, NoSuchAlgorithmException {
@@ -0,0 +1,141 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Read-only view of a file mapped into memory, so the input can be scanned several times with
+ * bulk copies instead of read calls. Files over 1 GB are mapped in several windows.
+ * Input that isn't a file is held in memory, or copied to a temporary file past 1 GB.
+ */
+final class MappedInput implements AutoCloseable {
+    private static final long WINDOW_SIZE = 1L << 30;
+    private static final int READ_SIZE = 1 << 16;
+
+    private final FileChannel channel; // closed with the input, null if owned by the caller
+    private final long size;
+    private final ByteBuffer[] windows;
+    private int window;
+
+    private MappedInput(FileChannel channel, long start, boolean owned) throws IOException {
+        this.channel = owned ? channel : null;
+        this.size = channel.size() - start;
+        this.windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+        for (int i = 0; i < windows.length; i++) {
+            long offset = i * WINDOW_SIZE;
+            windows[i] = channel.map(FileChannel.MapMode.READ_ONLY, start + offset, Math.min(WINDOW_SIZE, size - offset));
+        }
+    }
+
+    private MappedInput(ByteBuffer buffer) {
+        this.channel = null;
+        this.size = buffer.remaining();
+        // cut into windows like a mapped file, so positions are found the same way
+        this.windows = new ByteBuffer[(int) ((size + WINDOW_SIZE - 1) / WINDOW_SIZE)];
+        for (int i = 0; i < windows.length; i++) {
+            int offset = (int) (i * WINDOW_SIZE);
+            windows[i] = buffer.slice(buffer.position() + offset, (int) Math.min(WINDOW_SIZE, size - offset));
+        }
+    }
+
+    static MappedInput open(String path) throws IOException {
+        FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+        try {
+            return new MappedInput(channel, 0, true);
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Takes everything left in the channel: files from their position on are mapped, buffers are
+     * used as they are and anything else is read into memory, or into a temporary file deleted
+     * on close once it reaches WINDOW_SIZE bytes. The channel is left at its end and isn't closed
+     * with the input.
+     */
+    static MappedInput of(ReadableByteChannel input) throws IOException {
+        if (input instanceof FileChannel file) {
+            MappedInput mapped = new MappedInput(file, file.position(), false);
+            file.position(file.size());
+            return mapped;
+        }
+        if (input instanceof ByteBufferChannel buffer) return new MappedInput(buffer.takeRemaining());
+
+        byte[] data = new byte[READ_SIZE];
+        int length = 0, read;
+        while ((read = input.read(ByteBuffer.wrap(data, length, data.length - length))) != -1) {
+            length += read;
+            if (length == WINDOW_SIZE) return spill(data, input);
+            if (length == data.length) data = Arrays.copyOf(data, (int) Math.min(2L * length, WINDOW_SIZE));
+        }
+        return new MappedInput(ByteBuffer.wrap(data, 0, length));
+    }
+
+    // writes what was read so far and the rest of the input to a temporary file and maps it
+    private static MappedInput spill(byte[] data, ReadableByteChannel input) throws IOException {
+        Path path = Files.createTempFile("input", ".tmp");
+        FileChannel file = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE,
+                StandardOpenOption.DELETE_ON_CLOSE);
+        try {
+            ByteBuffer buffer = ByteBuffer.wrap(data);
+            while (buffer.hasRemaining()) file.write(buffer);
+            buffer = ByteBuffer.allocate(READ_SIZE);
+            while (input.read(buffer.clear()) != -1) {
+                buffer.flip();
+                while (buffer.hasRemaining()) file.write(buffer);
+            }
+            return new MappedInput(file, 0, true);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    long size() { return size; }
+
+    /**
+     * Copies the next bytes into the chunk and returns how many were copied, or -1 at the end of the file.
+     */
+    int read(byte[] chunk) {
+        while (window < windows.length && !windows[window].hasRemaining()) window++;
+        if (window == windows.length) return -1;
+        ByteBuffer buffer = windows[window];
+        int length = Math.min(chunk.length, buffer.remaining());
+        buffer.get(chunk, 0, length);
+        return length;
+    }
+
+    /**
+     * Copies length bytes starting at the given file position, without moving the scan position.
+     */
+    void read(long position, byte[] destination, int offset, int length) {
+        while (length > 0) {
+            ByteBuffer buffer = windows[(int) (position / WINDOW_SIZE)];
+            int start = (int) (position % WINDOW_SIZE);
+            int count = Math.min(length, buffer.limit() - start);
+            buffer.get(start, destination, offset, count);
+            position += count;
+            offset += count;
+            length -= count;
+        }
+    }
+
+    /**
+     * Moves the scan position back to the start of the file.
+     */
+    void rewind() {
+        for (ByteBuffer buffer : windows) buffer.rewind();
+        window = 0;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (channel != null) channel.close();
+    }
+}
@@ -0,0 +1,48 @@
+/**
+ * Receives what an algorithm measured during each compress or decompress call.
+ * Algorithms given NONE take no measurements at all.
+ */
+public interface MetricsListener {
+
+    MetricsListener NONE = new MetricsListener() {
+        @Override
+        public void phase(String algorithm, boolean compress, Phase phase, long nanos) { }
+
+        @Override
+        public void call(Call call) { }
+    };
+
+    /**
+     * Parts of a call that are timed separately.
+     */
+    enum Phase {
+        /** Reading the whole input into memory, for the algorithms that scan it twice. */
+        READ,
+        /** Counting the frequencies of the symbols. */
+        COUNT,
+        /** Building the codes, the model or the decoder tables. */
+        BUILD,
+        /** Coding the input and writing the output. */
+        ENCODE,
+        /** Decoding the input and writing the output. */
+        DECODE
+    }
+
+    /**
+     * Figures of a whole call: the bytes read and written, the number of symbols or codes coded,
+     * the number of distinct symbols, dictionary entries or contexts, and the number of entries
+     * of the largest table used.
+     */
+    record Call(String algorithm, boolean compress, long bytesIn, long bytesOut,
+                long symbols, long dictionarySize, long peakTableSize) { }
+
+    /**
+     * Called when a phase of a compress or decompress call ends, with its duration.
+     */
+    void phase(String algorithm, boolean compress, Phase phase, long nanos);
+
+    /**
+     * Called when a call ends, after its phases.
+     */
+    void call(Call call);
+}
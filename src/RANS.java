@@ -0,0 +1,197 @@
+import java.io.*;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+
+/**
+ * Order-0 entropy coder based on rANS (range asymmetric numeral systems). The byte frequencies of
+ * the file are quantized to a power-of-two total, so decoding a symbol is a table lookup, a
+ * multiplication and a shift. Four coder states take turns on consecutive bytes, which keeps the
+ * dependency chains of the decoder short.
+ */
+public class RANS implements CompressionAlgorithm {
+
+    // Constants
+    private static final int PROB_BITS = 12;
+    private static final int PROB_SCALE = 1 << PROB_BITS;
+    private static final int STATE_LOW = 1 << 23; // states stay in [STATE_LOW, STATE_LOW << 8)
+    private static final int STATES = 4;
+    private static final int BLOCK_SIZE = 1 << 20;
+
+    //
+    // Public Methods
+    //
+
+    /**
+     * The compressed file holds the quantized frequency of each byte value (16 bits each),
+     * then blocks of [raw length, compressed length, final states, bytes] ended by an empty block.
+     */
+    @Override
+    public void compress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        try (MappedInput input = MappedInput.of(inputChannel)) {
+            DataOutputStream outputStream = new DataOutputStream(new BufferedOutputStream
+                (Channels.newOutputStream(outputChannel)));
+
+            // the end of file count is left out, the raw length of each block is stored instead
+            long[] counts = Arrays.copyOf(ArithmeticCoding.getFrequencies(input), 256);
+            int[] frequencies = ArithmeticCoding.FrequencyTable.normalize(counts, PROB_BITS);
+            input.rewind();
+            for (int frequency : frequencies) outputStream.writeShort(frequency);
+
+            int[] starts = getStarts(frequencies);
+            byte[] block = new byte[BLOCK_SIZE];
+            byte[] encoded = new byte[maxEncodedSize(BLOCK_SIZE)];
+            int read;
+            while ((read = input.read(block)) != -1) {
+                int offset = encodeBlock(block, read, frequencies, starts, encoded);
+                outputStream.writeInt(read);
+                outputStream.writeInt(encoded.length - offset);
+                outputStream.write(encoded, offset, encoded.length - offset);
+            }
+            outputStream.writeInt(0);
+            outputStream.flush();
+        }
+    }
+
+    @Override
+    public void decompress(ReadableByteChannel inputChannel, WritableByteChannel outputChannel) throws IOException {
+        DataInputStream inputStream = new DataInputStream(new BufferedInputStream(Channels.newInputStream(inputChannel)));
+        OutputStream outputStream = new BufferedOutputStream(Channels.newOutputStream(outputChannel));
+
+        int[] frequencies = new int[256];
+        for (int i = 0; i < 256; i++) frequencies[i] = inputStream.readUnsignedShort();
+        int[] starts = getStarts(frequencies);
+        byte[] slotSymbols = getSlotSymbols(frequencies, starts);
+
+        byte[] block = new byte[BLOCK_SIZE];
+        byte[] encoded = new byte[maxEncodedSize(BLOCK_SIZE)];
+        int rawLength;
+        while ((rawLength = inputStream.readInt()) != 0) {
+            int encodedLength = inputStream.readInt();
+            if (rawLength < 0 || rawLength > BLOCK_SIZE || encodedLength < 4 * STATES || encodedLength > encoded.length)
+                throw new IOException("Corrupted rANS block");
+            inputStream.readFully(encoded, 0, encodedLength);
+            decodeBlock(encoded, encodedLength, block, rawLength, frequencies, starts, slotSymbols);
+            outputStream.write(block, 0, rawLength);
+        }
+        outputStream.flush();
+    }
+
+    public String getCompressedPath(String path) {
+        return path + ".rans";
+    }
+
+    public String getDecompressedPath(String path) {
+        String originalFilePath = path.substring(0, path.length() - 5);
+        return ChannelIO.changeExtension(originalFilePath, originalFilePath.substring(originalFilePath.lastIndexOf('.')), true);
+    }
+
+    //
+    // Private methods
+    //
+
+    private static int[] getStarts(int[] frequencies) {
+        int[] starts = new int[256];
+        for (int i = 1; i < 256; i++) starts[i] = starts[i - 1] + frequencies[i - 1];
+        return starts;
+    }
+
+    /**
+     * Maps each of the PROB_SCALE slots to the byte whose range holds it.
+     */
+    private static byte[] getSlotSymbols(int[] frequencies, int[] starts) throws IOException {
+        if (starts[255] + frequencies[255] > PROB_SCALE) throw new IOException("Corrupted rANS frequencies");
+        byte[] slotSymbols = new byte[PROB_SCALE];
+        for (int symbol = 0; symbol < 256; symbol++)
+            for (int slot = starts[symbol]; slot < starts[symbol] + frequencies[symbol]; slot++)
+                slotSymbols[slot] = (byte) symbol;
+        return slotSymbols;
+    }
+
+    // a byte costs at most PROB_BITS bits, plus the states
+    private static int maxEncodedSize(int length) {
+        return length / 8 * PROB_BITS + 16 + 4 * STATES;
+    }
+
+    /**
+     * Encodes the block into the end of the output, returning where the encoded bytes start.
+     * rANS decodes in the reverse order of encoding, so the bytes are encoded from last to first
+     * and the output is written backwards.
+     */
+    private static int encodeBlock(byte[] block, int length, int[] frequencies, int[] starts, byte[] output) {
+        int[] states = new int[STATES];
+        Arrays.fill(states, STATE_LOW);
+        int position = output.length;
+        for (int i = length - 1; i >= 0; i--) {
+            int symbol = block[i] & 0xFF;
+            int frequency = frequencies[symbol];
+            int x = states[i & (STATES - 1)];
+            // move bytes out until encoding the symbol keeps the state below STATE_LOW << 8
+            long maxState = ((long) (STATE_LOW >>> PROB_BITS) << 8) * frequency;
+            while (x >= maxState) {
+                output[--position] = (byte) x;
+                x >>>= 8;
+            }
+            states[i & (STATES - 1)] = ((x / frequency) << PROB_BITS) + (x % frequency) + starts[symbol];
+        }
+        for (int j = STATES - 1; j >= 0; j--) {
+            int x = states[j];
+            output[--position] = (byte) x;
+            output[--position] = (byte) (x >>> 8);
+            output[--position] = (byte) (x >>> 16);
+            output[--position] = (byte) (x >>> 24);
+        }
+        return position;
+    }
+
+    private static void decodeBlock(byte[] input, int inputLength, byte[] block, int length,
+                                    int[] frequencies, int[] starts, byte[] slotSymbols) throws IOException {
+        int position = 0;
+        int[] states = new int[STATES];
+        for (int j = 0; j < STATES; j++) {
+            states[j] = (input[position] & 0xFF) << 24 | (input[position + 1] & 0xFF) << 16
+                | (input[position + 2] & 0xFF) << 8 | (input[position + 3] & 0xFF);
+            position += 4;
+        }
+        int x0 = states[0], x1 = states[1], x2 = states[2], x3 = states[3];
+        int mask = PROB_SCALE - 1;
+        int i = 0;
+        try {
+            // the four states are independent until they read input, so their steps can overlap
+            for (; i + STATES <= length; i += STATES) {
+                int s0 = slotSymbols[x0 & mask] & 0xFF;
+                int s1 = slotSymbols[x1 & mask] & 0xFF;
+                int s2 = slotSymbols[x2 & mask] & 0xFF;
+                int s3 = slotSymbols[x3 & mask] & 0xFF;
+                block[i] = (byte) s0;
+                block[i + 1] = (byte) s1;
+                block[i + 2] = (byte) s2;
+                block[i + 3] = (byte) s3;
+                x0 = frequencies[s0] * (x0 >>> PROB_BITS) + (x0 & mask) - starts[s0];
+                x1 = frequencies[s1] * (x1 >>> PROB_BITS) + (x1 & mask) - starts[s1];
+                x2 = frequencies[s2] * (x2 >>> PROB_BITS) + (x2 & mask) - starts[s2];
+                x3 = frequencies[s3] * (x3 >>> PROB_BITS) + (x3 & mask) - starts[s3];
+                while (x0 < STATE_LOW) x0 = x0 << 8 | (input[position++] & 0xFF);
+                while (x1 < STATE_LOW) x1 = x1 << 8 | (input[position++] & 0xFF);
+                while (x2 < STATE_LOW) x2 = x2 << 8 | (input[position++] & 0xFF);
+                while (x3 < STATE_LOW) x3 = x3 << 8 | (input[position++] & 0xFF);
+            }
+            states[0] = x0;
+            states[1] = x1;
+            states[2] = x2;
+            states[3] = x3;
+            for (; i < length; i++) {
+                int x = states[i & (STATES - 1)];
+                int symbol = slotSymbols[x & mask] & 0xFF;
+                block[i] = (byte) symbol;
+                x = frequencies[symbol] * (x >>> PROB_BITS) + (x & mask) - starts[symbol];
+                while (x < STATE_LOW) x = x << 8 | (input[position++] & 0xFF);
+                states[i & (STATES - 1)] = x;
+            }
+        } catch (ArrayIndexOutOfBoundsException e) {
+            throw new IOException("Corrupted rANS block");
+        }
+        if (position != inputLength) throw new IOException("Corrupted rANS block");
+    }
+}